@@ -0,0 +1,448 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+// An end-to-end workload that can be built and run at several sizes. run() builds the
+// network, drives it and returns the number of simulated events it processed.
+interface Scenario {
+    String getName();
+    String getEvents(); // what one event is, for the report
+    int[] getScales();
+    long run(int scale);
+}
+
+// Every host on a three-tier switched LAN broadcasts in turn, so each frame is flooded
+// through every switch to every other host. Events are frames delivered to hosts.
+class BroadcastStormScenario implements Scenario {
+    private static final long DELIVERIES = 20_000_000L;
+
+    public String getName() { return "storm"; }
+    public String getEvents() { return "frame deliveries"; }
+    public int[] getScales() { return new int[] { 1_000, 16_000, 256_000 }; }
+
+    public long run(int hosts) {
+        DeviceRegistry registry = LargeTopology.build(hosts, 48);
+        int[] hostIds = new int[hosts];
+        for (int id = 0, h = 0; id < registry.size(); id++) {
+            if (registry.getKind(id) == DeviceRegistry.END_DEVICE) {
+                hostIds[h++] = id;
+            }
+        }
+        registry.setFrameListener((device, frame) -> { });
+        PacketBuffer frame = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, 64);
+        long broadcasts = Math.max(1, DELIVERIES / hosts);
+        for (long i = 0; i < broadcasts; i++) {
+            int from = hostIds[(int) (i % hosts)];
+            frame.clear();
+            frame.append(64);
+            EthernetFrame.push(frame, EthernetFrame.BROADCAST, registry.getMacBits(from), EthernetFrame.TYPE_IPV4);
+            registry.transmit(from, frame);
+        }
+        return registry.getFramesDelivered();
+    }
+}
+
+// Areas of routers on rings with chords, joined by a full mesh of their first routers,
+// all running RIP. After routes converge, probes between random LANs are forwarded hop
+// by hop until a periodic refresh has gone round. Events are event queue events.
+class RoutedFabricScenario implements Scenario {
+    private static final long SECOND = 1_000_000_000L;
+    private static final long PROBE_INTERVAL = 50_000L;
+    private static final int ROUTERS_PER_AREA = 32;
+
+    private EventQueue queue;
+    private RouterNetwork network;
+    private Random random;
+    private PacketBuffer probe = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, 128);
+    private int probeHandler;
+
+    public String getName() { return "fabric"; }
+    public String getEvents() { return "event queue events"; }
+    public int[] getScales() { return new int[] { 2, 8, 32 }; } // areas
+
+    public long run(int areas) {
+        queue = new EventQueue();
+        network = new RouterNetwork();
+        random = new Random(areas);
+        // Host .10 behind every LAN answers for the whole fabric
+        FrameSink sink = new FrameSink();
+        for (int area = 0; area < areas; area++) {
+            int first = area * ROUTERS_PER_AREA;
+            for (int i = 0; i < ROUTERS_PER_AREA; i++) {
+                network.addRouter("Router" + (area + 1) + "." + (i + 1));
+                network.getLan(first + i).connect(sink);
+                network.addHost(first + i, sink);
+            }
+            network.cable(first, RouterNetwork.ringWithChords(ROUTERS_PER_AREA, new Random(area)));
+        }
+        for (int a = 0; a < areas; a++) {
+            for (int b = a + 1; b < areas; b++) {
+                network.cable(a * ROUTERS_PER_AREA, b * ROUTERS_PER_AREA);
+            }
+        }
+        RipDomain rip = new RipDomain(queue, 7);
+        for (Router router : network.getRouters()) {
+            router.configureRIP(rip);
+        }
+
+        probeHandler = queue.register((now, arg) -> sendProbe(now));
+        rip.start();
+        queue.schedule(5 * SECOND, probeHandler, 0);
+        queue.run(35 * SECOND);
+        long events = queue.getProcessed();
+        queue = null; // so the network can be collected before the next measurement
+        network = null;
+        return events;
+    }
+
+    private void sendProbe(long now) {
+        int routers = network.getRouters().size();
+        int from = random.nextInt(routers);
+        network.sendProbe(probe, from, RouterNetwork.hostAddress(random.nextInt(routers)));
+        queue.schedule(now + PROBE_INTERVAL, probeHandler, 0);
+    }
+}
+
+// A bulk transfer of full-size frames over a checksummed Go-Back-8 link with loss and
+// corruption. Events are frame transmissions, first sends and retransmissions.
+class BulkTransferScenario implements Scenario {
+    public String getName() { return "transfer"; }
+    public String getEvents() { return "frame transmissions"; }
+    public int[] getScales() { return new int[] { 100_000, 1_000_000, 4_000_000 }; } // frames
+
+    public long run(int frameCount) {
+        EndDevice sender = new EndDevice("Device A");
+        FrameSink receiver = new FrameSink();
+        LinkPipeline link = new LinkPipeline(new FcsStage(), new GoBackNStage(8, 100_000));
+        link.setLink(1_000_000_000L, 10_000);
+        link.setImpairments(10, 20, 7); // 0.1% loss, 0.2% corruption
+        sender.connect(link);
+        link.connect(receiver);
+        PacketBuffer frame = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, 1500 + FcsStage.TRAILER_LENGTH);
+        for (int i = 0; i < frameCount; i++) {
+            frame.clear();
+            frame.append(1500 - EthernetFrame.HEADER_LENGTH);
+            EthernetFrame.push(frame, receiver.getMacBits(), sender.getMacBits(), EthernetFrame.TYPE_IPV4);
+            sender.transmitFrame(frame);
+        }
+        return link.getFrames() + link.getResends();
+    }
+}
+
+// Measurements of one scenario at one scale, and their JSON form
+class BenchmarkResult {
+    private String scenario;
+    private int scale;
+    private long events;
+    private long wallNanos;
+    private long peakHeap;
+    private long allocated;
+    private double throughputSpread; // (fastest - slowest) / median events per second over the repeats
+
+    public BenchmarkResult(String scenario, int scale, long events, long wallNanos, long peakHeap, long allocated) {
+        this.scenario = scenario;
+        this.scale = scale;
+        this.events = events;
+        this.wallNanos = wallNanos;
+        this.peakHeap = peakHeap;
+        this.allocated = allocated;
+    }
+
+    public String getScenario() { return scenario; }
+    public int getScale() { return scale; }
+    public long getEvents() { return events; }
+    public long getWallNanos() { return wallNanos; }
+    public long getPeakHeap() { return peakHeap; }
+    public long getAllocated() { return allocated; }
+    public double getThroughputSpread() { return throughputSpread; }
+    public void setThroughputSpread(double throughputSpread) { this.throughputSpread = throughputSpread; }
+    public String getKey() { return scenario + "/" + scale; }
+
+    public double getEventsPerSecond() { return events * 1e9 / wallNanos; }
+    public double getAllocationRate() { return allocated * 1e9 / wallNanos; }
+    public double getBytesPerEvent() { return allocated / (double) Math.max(1, events); }
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"scenario\": \"%s\", \"scale\": %d, \"events\": %d, \"wallMillis\": %.3f, "
+                + "\"eventsPerSecond\": %.1f, \"peakHeapBytes\": %d, \"allocatedBytes\": %d, "
+                + "\"allocationBytesPerSecond\": %.1f, \"throughputSpread\": %.4f}", scenario, scale, events, wallNanos / 1e6,
+                getEventsPerSecond(), peakHeap, allocated, getAllocationRate(), throughputSpread);
+    }
+
+    // Inverse of toJson for one result object; derived rates are recomputed
+    public static BenchmarkResult fromJson(String json) {
+        Map<String, String> fields = new HashMap<>();
+        Matcher field = Pattern.compile("\"(\\w+)\"\\s*:\\s*\"?([^\",}]*)\"?").matcher(json);
+        while (field.find()) {
+            fields.put(field.group(1), field.group(2).trim());
+        }
+        BenchmarkResult result = new BenchmarkResult(fields.get("scenario"), Integer.parseInt(fields.get("scale")),
+                Long.parseLong(fields.get("events")), (long) (Double.parseDouble(fields.get("wallMillis")) * 1e6),
+                Long.parseLong(fields.get("peakHeapBytes")), Long.parseLong(fields.get("allocatedBytes")));
+        if (fields.containsKey("throughputSpread")) { // older baselines do not have it
+            result.setThroughputSpread(Double.parseDouble(fields.get("throughputSpread")));
+        }
+        return result;
+    }
+}
+
+// Highest heap use during a run above the live set it started from. Each collection
+// reports the whole heap as it was just before it ran, which is where use peaks, so the
+// pools are added up at one moment; per-pool peaks are reached at different times and
+// their sum overstates the peak.
+class HeapPeak implements NotificationListener {
+    private static final long NOTIFICATION_WAIT_MILLIS = 1000;
+
+    private List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    private Set<String> heapPoolNames = new HashSet<>();
+    private long collectionsBefore; // collections that happened before the listener was added
+    private long notifications;
+    private long baseline;
+    private long peak;
+
+    public HeapPeak() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool);
+                heapPoolNames.add(pool.getName());
+            }
+        }
+        collectionsBefore = collections();
+        for (GarbageCollectorMXBean collector : collectors) {
+            ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+        }
+    }
+
+    // Collect first, so earlier runs' garbage is neither in the baseline nor in the peak
+    public void start() {
+        System.gc();
+        awaitNotifications();
+        synchronized (this) {
+            baseline = usedHeap();
+            peak = baseline;
+        }
+    }
+
+    // Peak heap above the baseline since start()
+    public long finish() {
+        awaitNotifications();
+        synchronized (this) {
+            peak = Math.max(peak, usedHeap());
+            return Math.max(0, peak - baseline);
+        }
+    }
+
+    public synchronized void handleNotification(Notification notification, Object handback) {
+        if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+            if (heapPoolNames.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        peak = Math.max(peak, used);
+        notifications++;
+        notifyAll();
+    }
+
+    // Notifications arrive on another thread; wait until every collection so far has reported
+    private synchronized void awaitNotifications() {
+        long deadline = System.currentTimeMillis() + NOTIFICATION_WAIT_MILLIS;
+        long wait;
+        while (notifications < collections() - collectionsBefore && (wait = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private long usedHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+}
+
+// Main class to run the end-to-end scenarios at each scale, write the measurements to a JSON
+// results file and compare them with a stored baseline. Exits with status 1 when events per
+// second fall, or peak heap or bytes allocated per event grow, by more than the threshold.
+public class Benchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int MIN_REPEATS = 3;
+    private static final HeapPeak HEAP = new HeapPeak();
+
+    public static void main(String[] args) throws IOException {
+        String selected = args.length > 0 ? args[0] : "all";
+        double threshold = args.length > 1 ? Double.parseDouble(args[1]) / 100 : 0.10;
+        int repeats = args.length > 2 ? Integer.parseInt(args[2]) : MIN_REPEATS;
+        Path resultsFile = Paths.get(args.length > 3 ? args[3] : "benchmark-results.json");
+        Path baselineFile = Paths.get(args.length > 4 ? args[4] : "benchmark-baseline.json");
+
+        List<Scenario> scenarios = new ArrayList<>();
+        for (Scenario scenario : new Scenario[] {
+                new BroadcastStormScenario(), new RoutedFabricScenario(), new BulkTransferScenario() }) {
+            if (selected.equals("all") || selected.equals(scenario.getName())) {
+                scenarios.add(scenario);
+            }
+        }
+        if (scenarios.isEmpty()) {
+            System.out.println("Unknown scenario " + selected + "; use storm, fabric, transfer or all");
+            System.exit(2);
+        }
+        if (repeats < MIN_REPEATS) {
+            System.out.println("Use at least " + MIN_REPEATS + " repeats; a single run can swing by tens of percent");
+            System.exit(2);
+        }
+
+        List<BenchmarkResult> results = new ArrayList<>();
+        for (Scenario scenario : scenarios) {
+            scenario.run(scenario.getScales()[0]); // warms up the JIT
+            for (int scale : scenario.getScales()) {
+                BenchmarkResult result = measure(scenario, scale, repeats);
+                results.add(result);
+                System.out.printf("%-9s %9d  %12d %-20s %9.1f ms  %8.2f M events/s  %8.1f MB peak heap  %8.1f MB/s allocated%n",
+                        scenario.getName(), scale, result.getEvents(), scenario.getEvents(), result.getWallNanos() / 1e6,
+                        result.getEventsPerSecond() / 1e6, result.getPeakHeap() / 1e6, result.getAllocationRate() / 1e6);
+            }
+        }
+        writeResults(resultsFile, results);
+        System.out.println("Results written to " + resultsFile);
+
+        if (!Files.exists(baselineFile)) {
+            System.out.println("No baseline at " + baselineFile + "; copy the results there to compare later runs");
+            return;
+        }
+        int regressions = compare(results, readResults(baselineFile), threshold);
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s) beyond " + threshold * 100 + "% against " + baselineFile);
+            System.exit(1);
+        }
+        System.out.println("No regressions beyond " + threshold * 100 + "% against " + baselineFile);
+    }
+
+    // The run with the median events per second is reported, so a single
+    // run disturbed by GC or the machine neither hides nor invents a regression. The
+    // spread between the fastest and slowest run is kept with it, to tell noise from change.
+    private static BenchmarkResult measure(Scenario scenario, int scale, int repeats) {
+        List<BenchmarkResult> runs = new ArrayList<>();
+        long threadId = Thread.currentThread().getId();
+        for (int repeat = 0; repeat < repeats; repeat++) {
+            HEAP.start();
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long events = scenario.run(scale);
+            long wall = System.nanoTime() - start;
+            long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            runs.add(new BenchmarkResult(scenario.getName(), scale, events, wall, HEAP.finish(), allocated));
+        }
+        runs.sort((a, b) -> Double.compare(a.getEventsPerSecond(), b.getEventsPerSecond()));
+        BenchmarkResult median = runs.get(runs.size() / 2);
+        median.setThroughputSpread((runs.get(runs.size() - 1).getEventsPerSecond() - runs.get(0).getEventsPerSecond())
+                / median.getEventsPerSecond());
+        return median;
+    }
+
+    private static void writeResults(Path file, List<BenchmarkResult> results) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append("    ").append(results.get(i).toJson()).append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        Files.write(file, json.toString().getBytes());
+    }
+
+    // Result objects are the only ones in the file with a "scenario" field
+    private static Map<String, BenchmarkResult> readResults(Path file) throws IOException {
+        Map<String, BenchmarkResult> results = new HashMap<>();
+        Matcher object = Pattern.compile("\\{[^{}]*\"scenario\"[^{}]*\\}").matcher(new String(Files.readAllBytes(file)));
+        while (object.find()) {
+            BenchmarkResult result = BenchmarkResult.fromJson(object.group());
+            results.put(result.getKey(), result);
+        }
+        return results;
+    }
+
+    private static int compare(List<BenchmarkResult> results, Map<String, BenchmarkResult> baseline, double threshold) {
+        System.out.println();
+        System.out.printf("%-9s %9s  %16s  %16s  %16s  %s%n", "Scenario", "Scale", "events/s", "peak heap",
+                "bytes/event", "Verdict");
+        int regressions = 0;
+        for (BenchmarkResult result : results) {
+            BenchmarkResult before = baseline.get(result.getKey());
+            if (before == null) {
+                System.out.printf("%-9s %9d  %16s  %16s  %16s  new%n", result.getScenario(), result.getScale(), "-", "-", "-");
+                continue;
+            }
+            double throughput = change(result.getEventsPerSecond(), before.getEventsPerSecond());
+            double heap = change(result.getPeakHeap(), before.getPeakHeap());
+            double allocation = change(result.getBytesPerEvent(), before.getBytesPerEvent());
+            // A run-to-run spread wider than the threshold is reported, not allowed for
+            double noise = Math.max(result.getThroughputSpread(), before.getThroughputSpread());
+            List<String> worse = new ArrayList<>();
+            if (throughput < -threshold) {
+                worse.add("throughput");
+            }
+            if (heap > threshold && result.getPeakHeap() >= 1 << 20) { // below a megabyte above the live set is noise
+                worse.add("peak heap");
+            }
+            if (allocation > threshold && result.getBytesPerEvent() >= 1) { // below a byte per event is noise
+                worse.add("allocation");
+            }
+            regressions += worse.isEmpty() ? 0 : 1;
+            System.out.printf(Locale.ROOT, "%-9s %9d  %+15.1f%%  %+15.1f%%  %+15.1f%%  %s%n", result.getScenario(),
+                    result.getScale(), throughput * 100, heap * 100, allocation * 100,
+                    (worse.isEmpty() ? "ok" : "REGRESSION: " + String.join(", ", worse))
+                    + (noise > threshold ? String.format(Locale.ROOT, " (throughput noise %.1f%%, add repeats)", noise * 100) : ""));
+        }
+        return regressions;
+    }
+
+    private static double change(double now, double before) {
+        return before == 0 ? 0 : now / before - 1;
+    }
+}
@@ -0,0 +1,800 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Distance-vector routing state of one router: prefixes with hop count metrics, learned
+// from neighbours that share a connected subnet and installed in the router's table.
+class RipProcess {
+    public static final int INFINITY = 16;
+    public static final int ENTRIES_PER_MESSAGE = 25;
+
+    private Router router;
+    private int id;
+
+    // Neighbours, one slot per router reachable on a shared subnet
+    private int neighborCount;
+    private int[] neighborProcess = new int[4];
+    private int[] neighborSlot = new int[4]; // our slot in the neighbour's list
+    private int[] neighborAddress = new int[4]; // next hop for routes learned from the neighbour
+    private int[] neighborInterface = new int[4]; // local interface the neighbour is reached on
+    private boolean[] neighborUp = new boolean[4];
+
+    // Routing table in parallel arrays, indexed by prefix
+    private PrefixMap index = new PrefixMap();
+    private int size;
+    private int[] network = new int[16];
+    private int[] length = new int[16];
+    private int[] metric = new int[16];
+    private int[] via = new int[16]; // neighbour slot, -1 for connected subnets
+    private long[] heard = new long[16]; // last refresh, or when the route became unreachable
+    private boolean[] changed = new boolean[16];
+    private int changedCount;
+    private boolean triggerPending;
+    private boolean active = true; // false while the router is crashed
+    private boolean tablesWanted; // routes were lost, so neighbours are asked for alternatives
+
+    public RipProcess(Router router, int id) {
+        this.router = router;
+        this.id = id;
+    }
+
+    public Router getRouter() { return router; }
+    public int getId() { return id; }
+    public int size() { return size; }
+    public int getNeighborCount() { return neighborCount; }
+    public int getNeighborProcess(int slot) { return neighborProcess[slot]; }
+    public int getNeighborSlot(int slot) { return neighborSlot[slot]; }
+    public int getNeighborInterface(int slot) { return neighborInterface[slot]; }
+    public boolean isNeighborUp(int slot) { return neighborUp[slot]; }
+    public boolean isActive() { return active; }
+    public void setActive(boolean active) { this.active = active; }
+    public boolean isTablesWanted() { return tablesWanted; }
+    public void setTablesWanted(boolean tablesWanted) { this.tablesWanted = tablesWanted; }
+    public int getChangedCount() { return changedCount; }
+    public boolean isTriggerPending() { return triggerPending; }
+    public void setTriggerPending(boolean triggerPending) { this.triggerPending = triggerPending; }
+
+    // Hop count to the prefix, or INFINITY when it is unknown or unreachable
+    public int getMetric(int network, int length) {
+        int entry = index.get(network, length);
+        return entry < 0 ? INFINITY : metric[entry];
+    }
+
+    public void addConnected(int network, int length) {
+        int entry = add(network, length);
+        metric[entry] = 1;
+        via[entry] = -1;
+        markChanged(entry);
+    }
+
+    public int addNeighbor(int process, int address, int iface) {
+        if (neighborCount == neighborProcess.length) {
+            int capacity = neighborCount * 2;
+            neighborProcess = Arrays.copyOf(neighborProcess, capacity);
+            neighborSlot = Arrays.copyOf(neighborSlot, capacity);
+            neighborAddress = Arrays.copyOf(neighborAddress, capacity);
+            neighborInterface = Arrays.copyOf(neighborInterface, capacity);
+            neighborUp = Arrays.copyOf(neighborUp, capacity);
+        }
+        neighborProcess[neighborCount] = process;
+        neighborUp[neighborCount] = true;
+        neighborAddress[neighborCount] = address;
+        neighborInterface[neighborCount] = iface;
+        return neighborCount++;
+    }
+
+    public void setNeighborSlot(int slot, int remoteSlot) {
+        neighborSlot[slot] = remoteSlot;
+    }
+
+    // The link to a neighbour failed: its routes become unreachable at once instead of
+    // waiting for the timeout. When it comes back every route is offered to it again.
+    public void setNeighborStatus(int slot, boolean up, long now) {
+        neighborUp[slot] = up;
+        for (int entry = 0; entry < size; entry++) {
+            if (!up && via[entry] == slot && metric[entry] < INFINITY) {
+                install(entry, slot, INFINITY, now);
+            } else if (up) {
+                markChanged(entry);
+            }
+        }
+    }
+
+    // A connected subnet stops or starts being advertised with its interface
+    public void setConnectedStatus(int network, int length, boolean up) {
+        int entry = index.get(network, length);
+        if (entry >= 0 && via[entry] < 0) {
+            metric[entry] = up ? 1 : INFINITY;
+            markChanged(entry);
+        }
+    }
+
+    // After a restart only connected subnets are known
+    public void restart(long now) {
+        for (int entry = size - 1; entry >= 0; entry--) {
+            if (via[entry] < 0) {
+                markChanged(entry);
+                continue;
+            }
+            if (metric[entry] < INFINITY) {
+                router.removeRoute(network[entry], length[entry]);
+            }
+            delete(entry);
+        }
+        tablesWanted = true;
+    }
+
+    // Apply (network, length, metric) triples advertised by the neighbour in the given slot.
+    // Returns true when any route changed.
+    public boolean receive(int slot, int[] entries, int offset, int count, long now) {
+        boolean updated = false;
+        for (int i = offset, end = offset + 3 * count; i < end; i += 3) {
+            int m = Math.min(entries[i + 2] + 1, INFINITY);
+            int entry = index.get(entries[i], entries[i + 1]);
+            if (entry < 0) {
+                if (m < INFINITY) {
+                    entry = add(entries[i], entries[i + 1]);
+                    install(entry, slot, m, now);
+                    updated = true;
+                }
+            } else if (via[entry] == slot) {
+                // Always believe the current next hop, better or worse
+                if (m < INFINITY) {
+                    heard[entry] = now;
+                }
+                if (m != metric[entry]) {
+                    install(entry, slot, m, now);
+                    updated = true;
+                }
+            } else if (via[entry] >= 0 && m < metric[entry]) {
+                install(entry, slot, m, now);
+                updated = true;
+            }
+        }
+        return updated;
+    }
+
+    // Time out routes not refreshed since the deadline and forget unreachable ones after
+    // the garbage collection time. Returns true when any route changed.
+    public boolean expire(long now, long timeout, long garbageTime) {
+        boolean updated = false;
+        for (int entry = size - 1; entry >= 0; entry--) {
+            if (via[entry] < 0) {
+                continue;
+            }
+            if (metric[entry] < INFINITY && now - heard[entry] > timeout) {
+                install(entry, via[entry], INFINITY, now);
+                updated = true;
+            } else if (metric[entry] == INFINITY && now - heard[entry] > garbageTime) {
+                delete(entry);
+            }
+        }
+        return updated;
+    }
+
+    // Write the update for one neighbour as (network, length, metric) triples: split horizon
+    // with poison reverse advertises routes learned from that neighbour back as unreachable.
+    public int writeUpdate(int slot, boolean changedOnly, int[] out, int offset) {
+        int count = 0;
+        for (int entry = 0; entry < size; entry++) {
+            if (changedOnly && !changed[entry]) {
+                continue;
+            }
+            int i = offset + 3 * count++;
+            out[i] = network[entry];
+            out[i + 1] = length[entry];
+            out[i + 2] = via[entry] == slot ? INFINITY : metric[entry];
+        }
+        return count;
+    }
+
+    public void clearChanged() {
+        if (changedCount > 0) {
+            Arrays.fill(changed, 0, size, false);
+            changedCount = 0;
+        }
+    }
+
+    private void install(int entry, int slot, int m, long now) {
+        boolean wasReachable = metric[entry] < INFINITY && via[entry] >= 0;
+        via[entry] = slot;
+        metric[entry] = m;
+        heard[entry] = now;
+        if (m < INFINITY) {
+            router.addRoute(network[entry], length[entry], neighborAddress[slot]);
+        } else if (wasReachable) {
+            router.removeRoute(network[entry], length[entry]);
+            tablesWanted = true;
+        }
+        markChanged(entry);
+    }
+
+    private void markChanged(int entry) {
+        if (!changed[entry]) {
+            changed[entry] = true;
+            changedCount++;
+        }
+    }
+
+    private int add(int network, int length) {
+        if (size == this.network.length) {
+            int capacity = size * 2;
+            this.network = Arrays.copyOf(this.network, capacity);
+            this.length = Arrays.copyOf(this.length, capacity);
+            metric = Arrays.copyOf(metric, capacity);
+            via = Arrays.copyOf(via, capacity);
+            heard = Arrays.copyOf(heard, capacity);
+            changed = Arrays.copyOf(changed, capacity);
+        }
+        int entry = size++;
+        this.network[entry] = network;
+        this.length[entry] = length;
+        metric[entry] = INFINITY;
+        changed[entry] = false;
+        index.put(network, length, entry);
+        return entry;
+    }
+
+    // Move the last entry into the freed position
+    private void delete(int entry) {
+        index.remove(network[entry], length[entry]);
+        if (changed[entry]) {
+            changedCount--;
+        }
+        int last = --size;
+        if (entry != last) {
+            network[entry] = network[last];
+            length[entry] = length[last];
+            metric[entry] = metric[last];
+            via[entry] = via[last];
+            heard[entry] = heard[last];
+            changed[entry] = changed[last];
+            index.put(network[entry], length[entry], entry);
+        }
+    }
+}
+
+// Runs RIP-style distance-vector routing between routers on the simulation timer.
+// Changes are announced in triggered updates coalesced over a short window, so a burst
+// of changes costs one message per neighbour; the full table is refreshed periodically.
+class RipDomain {
+    private EventQueue queue;
+    private List<RipProcess> processes = new ArrayList<>();
+    private Random random;
+    private int deliverHandler;
+    private int triggerHandler;
+    private int periodicHandler;
+
+    private long updateInterval = 30_000_000_000L;
+    private long timeout = 180_000_000_000L;
+    private long garbageTime = 120_000_000_000L;
+    private long triggerDelay = 50_000_000L; // coalescing window for triggered updates
+    private long linkDelay = 1_000_000L;
+
+    // Updates in flight: receiver process, receiver's slot for the sender, entry count, entries.
+    // A count of -1 marks a request for the receiver's whole table.
+    private List<int[]> inFlight = new ArrayList<>();
+    private int[] freeMessages = new int[16];
+    private int freeCount;
+
+    private long messages;
+    private long entriesSent;
+    private long triggeredUpdates;
+    private long periodicUpdates;
+    private long lastChange;
+    private long cpuTime;
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private Map<Router, RipProcess> byRouter = new IdentityHashMap<>();
+
+    public RipDomain(EventQueue queue, long seed) {
+        this.queue = queue;
+        this.random = new Random(seed);
+        this.deliverHandler = queue.register(this::deliver);
+        this.triggerHandler = queue.register(this::trigger);
+        this.periodicHandler = queue.register(this::refresh);
+    }
+
+    public List<RipProcess> getProcesses() { return processes; }
+    public long getMessages() { return messages; }
+    public long getEntriesSent() { return entriesSent; }
+    public long getLastChange() { return lastChange; }
+    public long getCpuTime() { return cpuTime; } // spent handling updates and timers
+
+    public void setTimers(long updateInterval, long timeout, long garbageTime, long triggerDelay) {
+        this.updateInterval = updateInterval;
+        this.timeout = timeout;
+        this.garbageTime = garbageTime;
+        this.triggerDelay = triggerDelay;
+    }
+
+    public void setLinkDelay(long linkDelay) {
+        this.linkDelay = linkDelay;
+    }
+
+    // Advertise every configured interface subnet of the router
+    public RipProcess attach(Router router) {
+        RipProcess process = new RipProcess(router, processes.size());
+        for (Interface iface : router.getInterfaces()) {
+            if (iface.getAddress() != 0) {
+                process.addConnected(iface.getAddress() & iface.getMask(), iface.getPrefixLength());
+            }
+        }
+        processes.add(process);
+        byRouter.put(router, process);
+        return process;
+    }
+
+    // Routers sharing a subnet become neighbours; the first triggered update carries the
+    // connected routes and periodic refreshes are spread over the update interval
+    public void start() {
+        Map<Long, List<int[]>> subnets = new HashMap<>();
+        for (RipProcess process : processes) {
+            List<Interface> interfaces = process.getRouter().getInterfaces();
+            for (int i = 0; i < interfaces.size(); i++) {
+                Interface iface = interfaces.get(i);
+                if (iface.getAddress() == 0) {
+                    continue;
+                }
+                long subnet = ((long) (iface.getAddress() & iface.getMask()) << 6) | iface.getPrefixLength();
+                subnets.computeIfAbsent(subnet, s -> new ArrayList<>()).add(new int[] { process.getId(), i });
+            }
+        }
+        for (List<int[]> members : subnets.values()) {
+            for (int a = 0; a < members.size(); a++) {
+                for (int b = a + 1; b < members.size(); b++) {
+                    link(members.get(a), members.get(b));
+                }
+            }
+        }
+        for (RipProcess process : processes) {
+            scheduleTrigger(process, queue.now());
+            queue.schedule(queue.now() + (long) (random.nextDouble() * updateInterval), periodicHandler, process.getId());
+        }
+    }
+
+    // Bring a process's changes to its neighbours after the coalescing window
+    public void scheduleTrigger(RipProcess process, long now) {
+        lastChange = now;
+        if (!process.isTriggerPending()) {
+            process.setTriggerPending(true);
+            queue.schedule(now + triggerDelay, triggerHandler, process.getId());
+        }
+    }
+
+    // Carrier change on a router interface: neighbours on it are dropped or greeted again
+    public void interfaceChanged(Router router, int iface, boolean up) {
+        RipProcess process = byRouter.get(router);
+        if (process == null) {
+            return;
+        }
+        long now = queue.now();
+        Interface changed = router.getInterfaces().get(iface);
+        process.setConnectedStatus(changed.getAddress() & changed.getMask(), changed.getPrefixLength(), up);
+        for (int slot = 0; slot < process.getNeighborCount(); slot++) {
+            if (process.getNeighborInterface(slot) == iface) {
+                process.setNeighborStatus(slot, up, now);
+            }
+        }
+        scheduleTrigger(process, now);
+    }
+
+    // A crashed router goes silent, so neighbours only notice when its routes time out;
+    // on restart it starts again from its connected subnets
+    public void routerCrashed(Router router, boolean crashed) {
+        RipProcess process = byRouter.get(router);
+        if (process == null) {
+            return;
+        }
+        process.setActive(!crashed);
+        if (!crashed) {
+            process.restart(queue.now());
+            scheduleTrigger(process, queue.now());
+        }
+    }
+
+    public void displayStatistics() {
+        System.out.println("RIP updates: " + triggeredUpdates + " triggered, " + periodicUpdates + " periodic");
+        System.out.println("RIP messages: " + messages + " carrying " + entriesSent + " route entries");
+    }
+
+    private void link(int[] a, int[] b) {
+        RipProcess first = processes.get(a[0]);
+        RipProcess second = processes.get(b[0]);
+        int firstSlot = first.addNeighbor(b[0], second.getRouter().getInterfaces().get(b[1]).getAddress(), a[1]);
+        int secondSlot = second.addNeighbor(a[0], first.getRouter().getInterfaces().get(a[1]).getAddress(), b[1]);
+        first.setNeighborSlot(firstSlot, secondSlot);
+        second.setNeighborSlot(secondSlot, firstSlot);
+    }
+
+    private void trigger(long now, int id) {
+        long start = threads.getCurrentThreadCpuTime();
+        RipProcess process = processes.get(id);
+        if (process.isActive()) {
+            sendUpdates(process, true, now);
+            if (process.isTablesWanted()) {
+                sendRequests(process, now);
+            }
+        } else {
+            process.setTriggerPending(false);
+        }
+        cpuTime += threads.getCurrentThreadCpuTime() - start;
+    }
+
+    private void refresh(long now, int id) {
+        long start = threads.getCurrentThreadCpuTime();
+        RipProcess process = processes.get(id);
+        if (process.isActive()) {
+            if (process.expire(now, timeout, garbageTime)) {
+                scheduleTrigger(process, now);
+            }
+            sendUpdates(process, false, now);
+        }
+        cpuTime += threads.getCurrentThreadCpuTime() - start;
+        // Jitter of up to a sixth of the interval keeps routers from synchronising
+        long jitter = (long) ((random.nextDouble() - 0.5) * updateInterval / 3);
+        queue.schedule(now + updateInterval + jitter, periodicHandler, id);
+    }
+
+    private void sendUpdates(RipProcess process, boolean changedOnly, long now) {
+        if (changedOnly) {
+            process.setTriggerPending(false);
+            if (process.getChangedCount() == 0) {
+                return; // already carried by a periodic update
+            }
+            triggeredUpdates++;
+        } else {
+            periodicUpdates++;
+        }
+        int count = changedOnly ? process.getChangedCount() : process.size();
+        for (int slot = 0; slot < process.getNeighborCount(); slot++) {
+            if (process.isNeighborUp(slot)) {
+                sendUpdate(process, slot, changedOnly, count, now);
+            }
+        }
+        process.clearChanged();
+    }
+
+    private void sendUpdate(RipProcess process, int slot, boolean changedOnly, int count, long now) {
+        int message = allocate(3 + 3 * count);
+        int[] update = inFlight.get(message);
+        int written = process.writeUpdate(slot, changedOnly, update, 3);
+        update[0] = process.getNeighborProcess(slot);
+        update[1] = process.getNeighborSlot(slot);
+        update[2] = written;
+        messages += (written + RipProcess.ENTRIES_PER_MESSAGE - 1) / RipProcess.ENTRIES_PER_MESSAGE;
+        entriesSent += written;
+        queue.schedule(now + linkDelay, deliverHandler, message);
+    }
+
+    private void sendRequests(RipProcess process, long now) {
+        process.setTablesWanted(false);
+        for (int slot = 0; slot < process.getNeighborCount(); slot++) {
+            if (process.isNeighborUp(slot)) {
+                int message = allocate(3);
+                int[] request = inFlight.get(message);
+                request[0] = process.getNeighborProcess(slot);
+                request[1] = process.getNeighborSlot(slot);
+                request[2] = -1;
+                messages++;
+                queue.schedule(now + linkDelay, deliverHandler, message);
+            }
+        }
+    }
+
+    private void deliver(long now, int message) {
+        long start = threads.getCurrentThreadCpuTime();
+        int[] update = inFlight.get(message);
+        RipProcess receiver = processes.get(update[0]);
+        // Updates in flight when the link or the receiver failed are lost
+        if (receiver.isActive() && receiver.isNeighborUp(update[1])) {
+            if (update[2] < 0) {
+                sendUpdate(receiver, update[1], false, receiver.size(), now);
+            } else {
+                RipUpdateEvent event = Telemetry.beginRipUpdate();
+                boolean changed = receiver.receive(update[1], update, 3, update[2], now);
+                if (event != null) {
+                    Telemetry.endRipUpdate(event, receiver.getRouter().getName(), update[2], changed);
+                }
+                if (changed) {
+                    scheduleTrigger(receiver, now);
+                }
+            }
+        }
+        cpuTime += threads.getCurrentThreadCpuTime() - start;
+        if (freeCount == freeMessages.length) {
+            freeMessages = Arrays.copyOf(freeMessages, freeCount * 2);
+        }
+        freeMessages[freeCount++] = message;
+    }
+
+    // Reuse a message array that is large enough
+    private int allocate(int capacity) {
+        if (freeCount > 0) {
+            int message = freeMessages[--freeCount];
+            if (inFlight.get(message).length < capacity) {
+                inFlight.set(message, new int[Math.max(capacity, inFlight.get(message).length * 2)]);
+            }
+            return message;
+        }
+        inFlight.add(new int[capacity]);
+        return inFlight.size() - 1;
+    }
+}
+
+// Link-state reference for the same topology: every router's LSA is flooded over every
+// link, then each router runs Dijkstra over the whole graph.
+class LinkStateBaseline {
+    private int[][] adjacency;
+    private long messages;
+    private long floodTime;
+    private int[][] distances;
+
+    public LinkStateBaseline(int[][] adjacency) {
+        this.adjacency = adjacency;
+    }
+
+    public long getMessages() { return messages; }
+    public long getFloodTime() { return floodTime; }
+    public int getDistance(int from, int to) { return distances[from][to]; }
+
+    // Flooding sends an LSA on every link except the one it arrived on; the last router
+    // hears the last LSA after the graph's diameter in link delays
+    public void flood(long linkDelay) {
+        int links = 0;
+        for (int[] neighbors : adjacency) {
+            links += neighbors.length;
+        }
+        int routers = adjacency.length;
+        messages = (long) routers * (links - (routers - 1));
+        int diameter = 0;
+        for (int source = 0; source < routers; source++) {
+            for (int d : shortestPaths(source)) {
+                diameter = Math.max(diameter, d);
+            }
+        }
+        floodTime = diameter * linkDelay;
+    }
+
+    public void computeAll() {
+        distances = new int[adjacency.length][];
+        for (int source = 0; source < adjacency.length; source++) {
+            SpfEvent event = Telemetry.beginSpf();
+            distances[source] = shortestPaths(source);
+            if (event != null) {
+                Telemetry.endSpf(event, source, adjacency.length);
+            }
+        }
+    }
+
+    // Dijkstra with unit link costs over a primitive binary heap of (distance << 32 | router)
+    private int[] shortestPaths(int source) {
+        int[] distance = new int[adjacency.length];
+        Arrays.fill(distance, Integer.MAX_VALUE);
+        long[] heap = new long[adjacency.length * 4 + 1];
+        int heapSize = 0;
+        distance[source] = 0;
+        heap[heapSize++] = source;
+        while (heapSize > 0) {
+            long top = heap[0];
+            long last = heap[--heapSize];
+            int i = 0;
+            while (2 * i + 1 < heapSize) {
+                int child = 2 * i + 1;
+                if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= last) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            int current = (int) top;
+            int d = (int) (top >>> 32);
+            if (d > distance[current]) {
+                continue;
+            }
+            for (int neighbor : adjacency[current]) {
+                if (d + 1 < distance[neighbor]) {
+                    distance[neighbor] = d + 1;
+                    if (heapSize == heap.length) {
+                        heap = Arrays.copyOf(heap, heapSize * 2);
+                    }
+                    int j = heapSize++;
+                    long item = ((long) (d + 1) << 32) | neighbor;
+                    while (j > 0 && heap[(j - 1) >>> 1] > item) {
+                        heap[j] = heap[(j - 1) >>> 1];
+                        j = (j - 1) >>> 1;
+                    }
+                    heap[j] = item;
+                }
+            }
+        }
+        return distance;
+    }
+}
+
+// Routers with a LAN each, cabled port to port. Router i has LAN 10.x.y.0/24 with i in
+// x.y and a host .10 behind it; each link is a /30 out of 172.16.0.0/12.
+class RouterNetwork {
+    private List<Router> routers = new ArrayList<>();
+    private List<RouterPort> lans = new ArrayList<>();
+    private Map<Integer, int[]> owners = new HashMap<>(); // interface address -> { router, interface }
+    private int links;
+
+    // A ring with as many random chords as routers, so the diameter stays within RIP's 15 hops
+    static int[][] ringWithChords(int routers, Random random) {
+        List<List<Integer>> neighbors = new ArrayList<>();
+        for (int i = 0; i < routers; i++) {
+            neighbors.add(new ArrayList<>());
+        }
+        for (int i = 0; i < routers; i++) {
+            connect(neighbors, i, (i + 1) % routers);
+        }
+        for (int chords = 0; chords < routers; ) {
+            int a = random.nextInt(routers);
+            int b = random.nextInt(routers);
+            if (a != b && !neighbors.get(a).contains(b)) {
+                connect(neighbors, a, b);
+                chords++;
+            }
+        }
+        int[][] adjacency = new int[routers][];
+        for (int i = 0; i < routers; i++) {
+            adjacency[i] = neighbors.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+        return adjacency;
+    }
+
+    private static void connect(List<List<Integer>> neighbors, int a, int b) {
+        neighbors.get(a).add(b);
+        neighbors.get(b).add(a);
+    }
+
+    public int addRouter(String name) {
+        int index = routers.size();
+        Router router = new Router(name);
+        Interface lan = new Interface("GigabitEthernet0/0", Device.formatMac(0x001A2B000000L + ((long) index << 8)));
+        lan.configure(0x0A000001 | (index << 8), IPv4.mask(24));
+        lans.add(router.addPort(lan));
+        routers.add(router);
+        return index;
+    }
+
+    // Cable every link of the adjacency, whose routers are numbered from first
+    public void cable(int first, int[][] adjacency) {
+        for (int a = 0; a < adjacency.length; a++) {
+            for (int b : adjacency[a]) {
+                if (b > a) {
+                    cable(first + a, first + b);
+                }
+            }
+        }
+    }
+
+    public void cable(int a, int b) {
+        int subnet = 0xAC100000 + (links++ << 2);
+        RouterPort portA = addLinkPort(a, subnet + 1);
+        RouterPort portB = addLinkPort(b, subnet + 2);
+        portA.connect(portB);
+        portB.connect(portA);
+        routers.get(a).addArpEntry(IPv4.format(subnet + 2), portB.getMacAddress());
+        routers.get(b).addArpEntry(IPv4.format(subnet + 1), portA.getMacAddress());
+    }
+
+    private RouterPort addLinkPort(int index, int address) {
+        Router router = routers.get(index);
+        int number = router.getInterfaces().size();
+        Interface iface = new Interface("GigabitEthernet0/" + number, Device.formatMac(0x001A2C000000L + address));
+        iface.configure(address, IPv4.mask(30));
+        owners.put(address, new int[] { index, number });
+        return router.addPort(iface);
+    }
+
+    public List<Router> getRouters() { return routers; }
+    public Router getRouter(int index) { return routers.get(index); }
+    public RouterPort getLan(int index) { return lans.get(index); }
+
+    // { router, interface } owning a link address, or null
+    public int[] getOwner(int address) { return owners.get(address); }
+
+    public static int hostAddress(int index) {
+        return 0x0A00000A | (index << 8);
+    }
+
+    // The router answers ARP for its LAN host with the device's MAC
+    public void addHost(int index, Device host) {
+        routers.get(index).addArpEntry(IPv4.format(hostAddress(index)), host.getMacAddress());
+    }
+
+    // A TCP packet from the host behind one router to an address, handed to that router's LAN port
+    public void sendProbe(PacketBuffer probe, int from, int destination) {
+        RouterPort port = lans.get(from);
+        probe.clear();
+        probe.append(64);
+        probe.putShort(probe.prepend(TransportLayer.HEADER_LENGTH), 1024);
+        IPv4Header.push(probe, hostAddress(from), destination, IPv4Header.PROTOCOL_TCP);
+        EthernetFrame.push(probe, port.getMacBits(), 0x020000000001L, EthernetFrame.TYPE_IPV4);
+        port.receiveFrame(probe);
+    }
+}
+
+// Main class to compare distance-vector and link-state convergence on generated topologies
+public class DistanceVector {
+    public static void main(String[] args) {
+        int[] sizes = { 100, 400, 1600 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int routers : sizes) {
+            int[][] adjacency = RouterNetwork.ringWithChords(routers, new Random(routers));
+            List<Router> network = buildRouters(adjacency);
+
+            EventQueue queue = new EventQueue();
+            RipDomain rip = new RipDomain(queue, 7);
+            for (Router router : network) {
+                router.configureRIP(rip);
+            }
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            rip.start();
+            queue.run(120_000_000_000L);
+            double ripCpu = (threads.getCurrentThreadCpuTime() - cpuStart) / 1e6;
+
+            LinkStateBaseline linkState = new LinkStateBaseline(adjacency);
+            linkState.flood(1_000_000L);
+            cpuStart = threads.getCurrentThreadCpuTime();
+            linkState.computeAll();
+            double spfCpu = (threads.getCurrentThreadCpuTime() - cpuStart) / 1e6;
+
+            System.out.println("Topology: " + routers + " routers, " + links(adjacency) + " links, 120 s simulated");
+            rip.displayStatistics();
+            System.out.printf("Distance vector: converged after %.3f s simulated, %.1f ms CPU, routes correct: %b%n",
+                    rip.getLastChange() / 1e9, ripCpu, verify(rip, linkState, adjacency));
+            System.out.printf("Link state:      %d LSA messages, flooded in %.3f s simulated, %.1f ms CPU for SPF%n",
+                    linkState.getMessages(), linkState.getFloodTime() / 1e9, spfCpu);
+            System.out.println();
+        }
+    }
+
+    private static List<Router> buildRouters(int[][] adjacency) {
+        RouterNetwork network = new RouterNetwork();
+        for (int i = 0; i < adjacency.length; i++) {
+            network.addRouter("Router" + (i + 1));
+        }
+        network.cable(0, adjacency);
+        return network.getRouters();
+    }
+
+    private static int links(int[][] adjacency) {
+        int links = 0;
+        for (int[] neighbors : adjacency) {
+            links += neighbors.length;
+        }
+        return links / 2;
+    }
+
+    // Every router should reach every LAN in one hop more than the shortest path
+    private static boolean verify(RipDomain rip, LinkStateBaseline linkState, int[][] adjacency) {
+        for (int from = 0; from < adjacency.length; from++) {
+            RipProcess process = rip.getProcesses().get(from);
+            for (int to = 0; to < adjacency.length; to++) {
+                int expected = Math.min(linkState.getDistance(from, to) + 1, RipProcess.INFINITY);
+                if (process.getMetric(0x0A000000 | (to << 8), 24) != expected) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
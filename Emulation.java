@@ -0,0 +1,498 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+// One-way delay and random loss applied to traffic crossing the simulated path
+class LinkModel {
+    private long delayNanos;
+    private int lossProbability; // Probability of a loss in percentage (0-100)
+    private Random random;
+
+    public LinkModel(long delayNanos, int lossProbability, long seed) {
+        this.delayNanos = delayNanos;
+        this.lossProbability = lossProbability;
+        this.random = new Random(seed);
+    }
+
+    public long getDelayNanos() { return delayNanos; }
+
+    public boolean drop() {
+        return lossProbability > 0 && random.nextInt(100) < lossProbability;
+    }
+}
+
+// A simulated end device attached to a real loopback socket
+class SocketBridge {
+    private HostStack host;
+    private HostStack peer; // simulated destination of bytes read from the socket
+    private DatagramChannel datagramChannel;
+    private SocketChannel connection;
+    private SelectionKey connectionKey;
+    private ByteBuffer pending; // bytes for the connection that did not fit in its socket buffer
+    private SocketAddress remote; // where delivered payloads are written for UDP
+    private boolean learnRemote; // reply to whoever sent last when no remote is configured
+
+    public SocketBridge(HostStack host, HostStack peer) {
+        this.host = host;
+        this.peer = peer;
+    }
+
+    public HostStack getHost() { return host; }
+    public HostStack getPeer() { return peer; }
+    public DatagramChannel getDatagramChannel() { return datagramChannel; }
+    public SocketChannel getConnection() { return connection; }
+    public SocketAddress getRemote() { return remote; }
+    public void setDatagramChannel(DatagramChannel channel) { this.datagramChannel = channel; }
+    public SelectionKey getConnectionKey() { return connectionKey; }
+    public ByteBuffer getPending() { return pending; }
+    public boolean hasPending() { return pending != null && pending.position() > 0; }
+    public boolean isStream() { return datagramChannel == null; }
+    public void setConnection(SocketChannel connection, SelectionKey key) {
+        this.connection = connection;
+        this.connectionKey = key;
+    }
+
+    // Queue bytes behind those already waiting, growing the queue as needed
+    public void queue(ByteBuffer bytes) {
+        if (pending == null || pending.remaining() < bytes.remaining()) {
+            int capacity = Math.max(pending == null ? 16 << 10 : pending.capacity() * 2,
+                    (pending == null ? 0 : pending.position()) + bytes.remaining());
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            if (pending != null) {
+                pending.flip();
+                larger.put(pending);
+            }
+            pending = larger;
+        }
+        pending.put(bytes);
+    }
+    public void setRemote(SocketAddress remote) { this.remote = remote; }
+    public boolean getLearnRemote() { return learnRemote; }
+    public void setLearnRemote(boolean learnRemote) { this.learnRemote = learnRemote; }
+}
+
+// Selector-driven, non-blocking gateway between loopback sockets and the simulated
+// topology. Simulated time follows the wall clock: bytes read from a socket are
+// injected after the modelled delay, and payloads delivered to a bridged host are
+// written back out of its socket.
+class EmulationGateway implements PayloadListener {
+    public static final int MAX_PAYLOAD = 1460;
+    private static final int MAX_DATAGRAM = 65_536;
+    private static final int PENDING_LIMIT = 64 << 20; // a connection this far behind is closed
+    private static final int POOL_SIZE = 4096;
+    private static final int READS_PER_KEY = 64; // bound the work per ready channel per pass
+    private static final int SOCKET_BUFFER = 4 << 20; // absorb bursts while events are being run
+
+    private EventQueue queue;
+    private LinkModel linkModel;
+    private Selector selector;
+    private Map<HostStack, SocketBridge> bridges;
+    private long epoch;
+    private volatile boolean running;
+
+    // In-flight payloads waiting out the link delay, kept in a fixed pool
+    private byte[][] slotData;
+    private int[] slotLength;
+    private SocketBridge[] slotBridge;
+    private SocketChannel[] slotConnection; // connection a stream segment was read from
+    private int[] freeSlots;
+    private int freeCount;
+    private int injectEvent;
+
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private PacketBuffer sendBuffer;
+
+    private long received;
+    private long modelDrops;
+    private long overloadDrops;
+    private long delivered;
+    private long shortWrites;
+    private long oversizeDrops;
+    private long socketDrops;
+    private long stalledConnections;
+    private long brokenStreams;
+    private long maxPending;
+    private long maxLateness;
+
+    public EmulationGateway(EventQueue queue, LinkModel linkModel) throws IOException {
+        this.queue = queue;
+        this.linkModel = linkModel;
+        this.selector = Selector.open();
+        this.bridges = new HashMap<>();
+        this.slotData = new byte[POOL_SIZE][MAX_PAYLOAD];
+        this.slotLength = new int[POOL_SIZE];
+        this.slotBridge = new SocketBridge[POOL_SIZE];
+        this.slotConnection = new SocketChannel[POOL_SIZE];
+        this.freeSlots = new int[POOL_SIZE];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            freeSlots[freeCount++] = i;
+        }
+        this.injectEvent = queue.register(this::inject);
+        this.readBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        this.writeBuffer = ByteBuffer.allocateDirect(MAX_PAYLOAD);
+        this.sendBuffer = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, MAX_PAYLOAD);
+    }
+
+    // Attach a host to a UDP socket on loopback. Payloads delivered to the host are
+    // sent to the given remote address, or to the last sender when it is null.
+    public InetSocketAddress bridgeUdp(HostStack host, HostStack peer, int localPort, SocketAddress remote)
+            throws IOException {
+        SocketBridge bridge = new SocketBridge(host, peer);
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+        channel.bind(new InetSocketAddress("127.0.0.1", localPort));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, bridge);
+        bridge.setDatagramChannel(channel);
+        bridge.setRemote(remote);
+        bridge.setLearnRemote(remote == null);
+        bridges.put(host, bridge);
+        host.setPayloadListener(this);
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    // Attach a host to a TCP listener on loopback; the accepted connection carries its traffic
+    public InetSocketAddress bridgeTcp(HostStack host, HostStack peer, int localPort) throws IOException {
+        SocketBridge bridge = new SocketBridge(host, peer);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", localPort));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT, bridge);
+        bridges.put(host, bridge);
+        host.setPayloadListener(this);
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    private long clock() {
+        return System.nanoTime() - epoch;
+    }
+
+    // Run the gateway until stop() is called or the duration elapses
+    public void run(long durationNanos) throws IOException {
+        epoch = System.nanoTime() - queue.now();
+        long deadline = clock() + durationNanos;
+        running = true;
+        while (running && clock() < deadline) {
+            long now = clock();
+            long next = queue.nextTime();
+            if (next <= now) {
+                maxLateness = Math.max(maxLateness, now - next);
+                queue.run(now);
+            }
+
+            long wait = queue.nextTime() - clock();
+            if (wait < 1_000_000) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.min(wait, deadline - clock()) / 1_000_000 + 1);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                SocketBridge bridge = (SocketBridge) key.attachment();
+                if (key.isAcceptable()) {
+                    accept(key, bridge);
+                    continue;
+                }
+                if (key.isWritable()) {
+                    flush(bridge);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(key, bridge);
+                }
+            }
+        }
+        running = false;
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept(SelectionKey key, SocketBridge bridge) throws IOException {
+        SocketChannel connection = ((ServerSocketChannel) key.channel()).accept();
+        if (connection != null) {
+            if (bridge.getConnection() != null) {
+                closeStream(bridge); // one connection per bridge; the newer one takes over
+            }
+            connection.configureBlocking(false);
+            bridge.setConnection(connection, connection.register(selector, SelectionKey.OP_READ, bridge));
+        }
+    }
+
+    private void read(SelectionKey key, SocketBridge bridge) throws IOException {
+        for (int i = 0; i < READS_PER_KEY; i++) {
+            readBuffer.clear();
+            if (key.channel() instanceof DatagramChannel) {
+                SocketAddress sender = ((DatagramChannel) key.channel()).receive(readBuffer);
+                if (sender == null) {
+                    return;
+                }
+                if (readBuffer.position() > MAX_PAYLOAD) {
+                    received++;
+                    oversizeDrops++; // one datagram cannot be split without changing what the peer receives
+                    Telemetry.dropped("emulation gateway", Telemetry.OVERSIZE);
+                    continue;
+                }
+                if (bridge.getLearnRemote()) {
+                    bridge.setRemote(sender);
+                }
+            } else {
+                readBuffer.limit(MAX_PAYLOAD); // a stream is cut into segments of at most one payload
+                int count = ((SocketChannel) key.channel()).read(readBuffer);
+                if (count < 0) {
+                    closeStream(bridge);
+                    return;
+                }
+                if (count == 0) {
+                    return;
+                }
+            }
+            readBuffer.flip();
+            admit(bridge);
+            if (bridge.isStream() && bridge.getConnection() == null) {
+                return; // the stream was broken and closed
+            }
+        }
+    }
+
+    // Apply the loss model and hold the bytes until the link delay has passed. Only
+    // datagrams are lost; a stream segment that cannot be carried breaks the stream.
+    private void admit(SocketBridge bridge) throws IOException {
+        received++;
+        if (!bridge.isStream() && linkModel.drop()) {
+            modelDrops++;
+            Telemetry.dropped("emulated link", Telemetry.LINK_ERRORS);
+            return;
+        }
+        if (freeCount == 0) {
+            overloadDrops++;
+            Telemetry.dropped("emulated link", Telemetry.QUEUE_FULL);
+            if (bridge.isStream()) {
+                breakStream(bridge);
+            }
+            return;
+        }
+        int slot = freeSlots[--freeCount];
+        slotLength[slot] = readBuffer.remaining();
+        slotBridge[slot] = bridge;
+        slotConnection[slot] = bridge.getConnection();
+        readBuffer.get(slotData[slot], 0, slotLength[slot]);
+        queue.schedule(clock() + linkModel.getDelayNanos(), injectEvent, slot);
+    }
+
+    private void inject(long now, int slot) {
+        SocketBridge bridge = slotBridge[slot];
+        SocketChannel connection = slotConnection[slot];
+        slotBridge[slot] = null;
+        slotConnection[slot] = null;
+        freeSlots[freeCount++] = slot;
+        if (bridge.isStream() && bridge.getConnection() != connection) {
+            return; // the stream was closed after this segment was read; the rest of it goes too
+        }
+        HostStack peer = bridge.getPeer();
+        if (!bridge.getHost().send(sendBuffer, slotData[slot], slotLength[slot], peer.getAddress(), peer.getDevice().getPort())
+                && bridge.isStream()) {
+            try {
+                breakStream(bridge);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // A stream missing a segment must not carry on: close both ends so each side sees it end
+    private void breakStream(SocketBridge bridge) throws IOException {
+        brokenStreams++;
+        closeStream(bridge);
+        SocketBridge peer = bridges.get(bridge.getPeer());
+        if (peer != null && peer.getConnection() != null) {
+            closeStream(peer);
+        }
+    }
+
+    private void closeStream(SocketBridge bridge) throws IOException {
+        bridge.getConnectionKey().cancel();
+        bridge.getConnection().close();
+        bridge.setConnection(null, null);
+        if (bridge.getPending() != null) {
+            bridge.getPending().clear();
+        }
+    }
+
+    public void onPayload(HostStack host, PacketBuffer payload) {
+        SocketBridge bridge = bridges.get(host);
+        if (bridge == null) {
+            return;
+        }
+        try {
+            if (bridge.getConnection() != null) {
+                writeStream(bridge, payload);
+            } else if (bridge.getDatagramChannel() != null && bridge.getRemote() != null) {
+                if (payload.length() > writeBuffer.capacity()) {
+                    oversizeDrops++;
+                    Telemetry.dropped("emulation gateway", Telemetry.OVERSIZE);
+                    return;
+                }
+                writeBuffer.clear();
+                writeBuffer.put(payload.array(), payload.start(), payload.length());
+                writeBuffer.flip();
+                if (bridge.getDatagramChannel().send(writeBuffer, bridge.getRemote()) == 0) {
+                    socketDrops++; // no room in the socket buffer; a datagram may be lost
+                    Telemetry.dropped("emulation gateway", Telemetry.QUEUE_FULL);
+                    return;
+                }
+            } else {
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        delivered++;
+    }
+
+    // Write the payload to the connection in order. Whatever the socket does not take is
+    // queued on the bridge and written when the selector reports the socket writable.
+    private void writeStream(SocketBridge bridge, PacketBuffer payload) throws IOException {
+        for (int offset = 0; offset < payload.length(); offset += writeBuffer.capacity()) {
+            writeBuffer.clear();
+            writeBuffer.put(payload.array(), payload.start() + offset,
+                    Math.min(writeBuffer.capacity(), payload.length() - offset));
+            writeBuffer.flip();
+            if (!bridge.hasPending()) {
+                bridge.getConnection().write(writeBuffer);
+            }
+            if (writeBuffer.hasRemaining()) {
+                shortWrites++;
+                bridge.queue(writeBuffer);
+            }
+        }
+        if (bridge.hasPending()) {
+            maxPending = Math.max(maxPending, bridge.getPending().position());
+            if (bridge.getPending().position() > PENDING_LIMIT) {
+                stalledConnections++; // closing beats silently dropping part of the stream
+                closeStream(bridge);
+                return;
+            }
+            SelectionKey key = bridge.getConnectionKey();
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void flush(SocketBridge bridge) throws IOException {
+        ByteBuffer pending = bridge.getPending();
+        pending.flip();
+        bridge.getConnection().write(pending);
+        pending.compact();
+        if (pending.position() == 0) {
+            SelectionKey key = bridge.getConnectionKey();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    public void displayStatistics() {
+        System.out.println("Gateway statistics:");
+        System.out.println("\t\t Received from sockets: " + received);
+        System.out.println("\t\t Dropped by link model: " + modelDrops);
+        System.out.println("\t\t Dropped, gateway overloaded: " + overloadDrops);
+        System.out.println("\t\t Dropped, larger than " + MAX_PAYLOAD + " bytes: " + oversizeDrops);
+        System.out.println("\t\t Delivered to sockets: " + delivered + " (" + shortWrites + " short writes queued, "
+                + maxPending + " bytes most queued, " + socketDrops + " datagrams refused, "
+                + stalledConnections + " stalled connections closed)");
+        System.out.println("\t\t Streams closed, segment could not be carried: " + brokenStreams);
+        System.out.printf("\t\t Max lateness behind wall clock: %.3f ms%n", maxLateness / 1e6);
+    }
+}
+
+// Main class to send real UDP datagrams through the simulated routed path
+public class Emulation {
+    public static void main(String[] args) throws Exception {
+        int datagrams = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        long delayNanos = 2_000_000; // 2 ms one-way
+        int lossProbability = 1;
+
+        HostStack[] hosts = ProtocolStack.routedPair();
+        EventQueue queue = new EventQueue();
+        EmulationGateway gateway = new EmulationGateway(queue, new LinkModel(delayNanos, lossProbability, 7));
+
+        // The application behind host B listens on its own socket
+        DatagramChannel server = DatagramChannel.open();
+        server.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        InetSocketAddress entry = gateway.bridgeUdp(hosts[0], hosts[1], 0, null);
+        gateway.bridgeUdp(hosts[1], hosts[0], 0, server.getLocalAddress());
+
+        Thread gatewayThread = new Thread(() -> {
+            try {
+                gateway.run(60_000_000_000L);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        gatewayThread.start();
+
+        long[] arrived = new long[1];
+        Thread receiver = new Thread(() -> {
+            ByteBuffer in = ByteBuffer.allocate(EmulationGateway.MAX_PAYLOAD);
+            try {
+                server.configureBlocking(false);
+                Selector selector = Selector.open();
+                server.register(selector, SelectionKey.OP_READ);
+                while (selector.select(1000) > 0) {
+                    selector.selectedKeys().clear();
+                    in.clear();
+                    while (server.receive(in) != null) {
+                        arrived[0]++;
+                        in.clear();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        receiver.start();
+
+        System.out.println("Sending " + datagrams + " datagrams to " + entry + " (Device A), received behind Device B");
+        DatagramChannel client = DatagramChannel.open();
+        ByteBuffer out = ByteBuffer.allocate(512);
+        long start = System.nanoTime();
+        for (int i = 0; i < datagrams; i++) {
+            out.clear();
+            out.putInt(i).position(out.capacity());
+            out.flip();
+            client.send(out, entry);
+            if (i % 100 == 99) {
+                Thread.sleep(1); // roughly 100k datagrams per second
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(delayNanos / 1_000_000 + 200);
+        gateway.stop();
+        gatewayThread.join();
+        receiver.join();
+
+        System.out.printf("Offered %d datagrams in %.3f s (%.0f datagrams/s)%n", datagrams, seconds, datagrams / seconds);
+        System.out.println("Delivered through the simulated path to Device B: " + hosts[1].getMessagesReceived());
+        System.out.println("Received by the application behind Device B: " + arrived[0]);
+        gateway.displayStatistics();
+    }
+}
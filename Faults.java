@@ -0,0 +1,236 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+// Told when a scheduled fault starts and when it is repaired
+interface FaultListener {
+    void onFault(int fault, long now, boolean repaired);
+}
+
+// Schedules failures and their repairs on the simulation timer. Each fault is numbered
+// in the order it was scheduled and announced to the listener when it starts and ends.
+class FaultInjector {
+    private EventQueue queue;
+    private int handler;
+    private List<Runnable> actions = new ArrayList<>();
+    private List<String> descriptions = new ArrayList<>();
+    private FaultListener listener;
+
+    public FaultInjector(EventQueue queue) {
+        this.queue = queue;
+        this.handler = queue.register((now, action) -> actions.get(action).run());
+    }
+
+    public int getFaultCount() { return descriptions.size(); }
+    public String getDescription(int fault) { return descriptions.get(fault); }
+
+    public void setListener(FaultListener listener) {
+        this.listener = listener;
+    }
+
+    // Run an action at a simulated time, e.g. to pick a fault's target once routes have converged
+    public void at(long time, Runnable action) {
+        actions.add(action);
+        queue.schedule(time, handler, actions.size() - 1);
+    }
+
+    // Both ends of a link lose carrier, so both routers notice at once
+    public int linkFlap(long time, long duration, Router a, int interfaceA, Router b, int interfaceB) {
+        return fault(time, duration, "link flap " + a.getName() + " - " + b.getName(), up -> {
+            a.setInterfaceStatus(interfaceA, up);
+            b.setInterfaceStatus(interfaceB, up);
+        });
+    }
+
+    public int interfaceShutdown(long time, long duration, Router router, int iface) {
+        return fault(time, duration, "shutdown " + router.getName() + " "
+                + router.getInterfaces().get(iface).getName(), up -> router.setInterfaceStatus(iface, up));
+    }
+
+    // The router stops forwarding and routing; neighbours are not told
+    public int crash(long time, long duration, Router router) {
+        return fault(time, duration, "crash " + router.getName(), up -> router.setCrashed(!up));
+    }
+
+    public int switchLinkDown(long time, long duration, Switch switchDevice, Device device) {
+        return fault(time, duration, "switch link down to " + device.getMacAddress(),
+                up -> switchDevice.setLinkStatus(device, up));
+    }
+
+    // Loss and corruption in 1/10000 per frame for the duration of the burst; the link's
+    // own settings are put back afterwards and its random sequence is left alone
+    public int impairmentBurst(long time, long duration, LinkPipeline link, int loss, int corruption) {
+        int[] saved = new int[2];
+        return fault(time, duration, "loss " + loss / 100.0 + "%, corruption " + corruption / 100.0 + "% burst", up -> {
+            if (up) {
+                link.setImpairments(saved[0], saved[1]);
+                return;
+            }
+            saved[0] = link.getLossProbability();
+            saved[1] = link.getCorruptionProbability();
+            link.setImpairments(loss, corruption);
+        });
+    }
+
+    private int fault(long time, long duration, String description, Consumer<Boolean> setUp) {
+        int fault = descriptions.size();
+        descriptions.add(description);
+        at(time, () -> {
+            setUp.accept(false);
+            if (listener != null) {
+                listener.onFault(fault, queue.now(), false);
+            }
+        });
+        at(time + duration, () -> {
+            if (listener != null) {
+                listener.onFault(fault, queue.now(), true); // before the repair changes any routes
+            }
+            setUp.accept(true);
+        });
+        return fault;
+    }
+}
+
+// Main class to inject failures into a routed network carrying a probe stream and report
+// packets lost, time to restore traffic and routing, and CPU spent in routing per fault
+public class Faults implements FaultListener {
+    private static final long SECOND = 1_000_000_000L;
+    private static final long PROBE_INTERVAL = 1_000_000L;
+    private static final int MAX_FAULTS = 16;
+
+    private EventQueue queue;
+    private RipDomain rip;
+    private int current = -1; // fault whose window the probes are in
+    private long[] faultTime = new long[MAX_FAULTS];
+    private long[] repairTime = new long[MAX_FAULTS];
+    private long[] lost = new long[MAX_FAULTS];
+    private long[] lastLoss = new long[MAX_FAULTS];
+    private long[] settledBeforeRepair = new long[MAX_FAULTS];
+    private long[] cpuAtFault = new long[MAX_FAULTS];
+    private long[] cpuInWindow = new long[MAX_FAULTS];
+
+    private RouterNetwork network;
+    private int destination;
+    private FrameSink sink;
+    private PacketBuffer probe = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, 128);
+    private int probeHandler;
+    private long probesSent;
+    private long probesLost;
+
+    public static void main(String[] args) {
+        int routers = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        new Faults().run(routers);
+    }
+
+    public void onFault(int fault, long now, boolean repaired) {
+        if (repaired) {
+            repairTime[fault] = now;
+            settledBeforeRepair[fault] = rip.getLastChange();
+            return;
+        }
+        closeWindow();
+        current = fault;
+        faultTime[fault] = now;
+        cpuAtFault[fault] = rip.getCpuTime();
+    }
+
+    private void closeWindow() {
+        if (current >= 0) {
+            cpuInWindow[current] = rip.getCpuTime() - cpuAtFault[current];
+        }
+    }
+
+    private void run(int routerCount) {
+        queue = new EventQueue();
+        rip = new RipDomain(queue, 7);
+
+        // Ring with chords as in DistanceVector
+        network = new RouterNetwork();
+        for (int i = 0; i < routerCount; i++) {
+            network.addRouter("Router" + (i + 1));
+        }
+        network.cable(0, RouterNetwork.ringWithChords(routerCount, new Random(routerCount)));
+        for (Router router : network.getRouters()) {
+            router.configureRIP(rip);
+        }
+
+        // Probes from a host behind the first router to a host behind the one halfway round,
+        // whose LAN runs through a checksummed link and a switch
+        int target = routerCount / 2;
+        Router source = network.getRouter(0);
+        destination = RouterNetwork.hostAddress(target);
+        sink = new FrameSink();
+        Switch lanSwitch = new Switch(24, "Switch " + (target + 1));
+        LinkPipeline lanLink = new LinkPipeline(new FcsStage());
+        network.getLan(target).connect(lanLink);
+        lanLink.connect(lanSwitch);
+        lanSwitch.learnAddress(sink);
+        network.addHost(target, sink);
+        Router destinationRouter = network.getRouter(target);
+
+        FaultInjector faults = new FaultInjector(queue);
+        faults.setListener(this);
+        // The first-hop link and router are only known once routes have converged
+        faults.at(10 * SECOND, () -> {
+            int[] peer = network.getOwner(source.nextHop(destination));
+            int local = source.findInterfaceIndex(source.nextHop(destination));
+            faults.linkFlap(queue.now(), 5 * SECOND, source, local, network.getRouter(peer[0]), peer[1]);
+        });
+        faults.interfaceShutdown(60 * SECOND, 5 * SECOND, destinationRouter, 0);
+        faults.at(100 * SECOND, () -> faults.crash(queue.now(), 400 * SECOND,
+                network.getRouter(network.getOwner(source.nextHop(destination))[0])));
+        faults.switchLinkDown(600 * SECOND, 2 * SECOND, lanSwitch, sink);
+        faults.impairmentBurst(700 * SECOND, 3 * SECOND, lanLink, 0, 3000);
+        long end = 720 * SECOND;
+
+        probeHandler = queue.register((now, arg) -> sendProbe(now));
+        rip.start();
+        queue.schedule(2 * SECOND, probeHandler, 0);
+        queue.run(end);
+        closeWindow();
+
+        System.out.println("Network: " + routerCount + " routers, probes every " + PROBE_INTERVAL / 1_000_000
+                + " ms from " + network.getRouter(0).getName() + " to " + IPv4.format(destination));
+        System.out.println("Probes sent: " + probesSent + ", lost: " + probesLost);
+        Integer[] order = new Integer[faults.getFaultCount()];
+        for (int fault = 0; fault < order.length; fault++) {
+            order[fault] = fault;
+        }
+        Arrays.sort(order, (x, y) -> Long.compare(faultTime[x], faultTime[y]));
+        for (int fault : order) {
+            System.out.println();
+            System.out.printf("At %.0f s: %s, repaired after %.0f s%n", faultTime[fault] / 1e9,
+                    faults.getDescription(fault), (repairTime[fault] - faultTime[fault]) / 1e9);
+            System.out.println("\t\t Probes lost: " + lost[fault]);
+            if (lost[fault] > 0) {
+                System.out.printf("\t\t Traffic restored after %.3f s%n",
+                        (lastLoss[fault] + PROBE_INTERVAL - faultTime[fault]) / 1e9);
+            }
+            if (settledBeforeRepair[fault] > faultTime[fault]) {
+                System.out.printf("\t\t Routing reconverged after %.3f s%n",
+                        (settledBeforeRepair[fault] - faultTime[fault]) / 1e9);
+            } else {
+                System.out.println("\t\t Routing unchanged until repair");
+            }
+            System.out.printf("\t\t RIP CPU until next fault: %.2f ms%n", cpuInWindow[fault] / 1e6);
+        }
+        System.out.println();
+        rip.displayStatistics();
+    }
+
+    private void sendProbe(long now) {
+        long delivered = sink.getFrames();
+        network.sendProbe(probe, 0, destination);
+        probesSent++;
+        if (sink.getFrames() == delivered) {
+            probesLost++;
+            if (current >= 0) {
+                lost[current]++;
+                lastLoss[current] = now;
+            }
+        }
+        queue.schedule(now + PROBE_INTERVAL, probeHandler, 0);
+    }
+}
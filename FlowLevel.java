@@ -0,0 +1,582 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Two-tier leaf-spine fabric of Router objects. Every leaf has one host subnet
+// 10.<leaf>.0/24 and one uplink /30 to every spine.
+class LeafSpineFabric {
+    private List<Router> leaves = new ArrayList<>();
+    private List<Router> spines = new ArrayList<>();
+    private List<Router> routers = new ArrayList<>();
+
+    public LeafSpineFabric(int leafCount, int spineCount) {
+        for (int s = 0; s < spineCount; s++) {
+            spines.add(new Router("Spine" + s));
+        }
+        for (int l = 0; l < leafCount; l++) {
+            Router leaf = new Router("Leaf" + l);
+            Interface hosts = new Interface("Vlan1", macFor(1, l, 0));
+            hosts.configure(hostSubnet(l) | 1, IPv4.mask(24));
+            leaf.addPort(hosts);
+            leaves.add(leaf);
+        }
+        for (int l = 0; l < leafCount; l++) {
+            for (int s = 0; s < spineCount; s++) {
+                int link = 0xAC100000 + (l * spineCount + s) * 4; // 172.16.0.0/12 point-to-point links
+                Interface up = new Interface("Ethernet" + s, macFor(2, l, s));
+                up.configure(link | 1, IPv4.mask(30));
+                Interface down = new Interface("Ethernet" + l, macFor(3, s, l));
+                down.configure(link | 2, IPv4.mask(30));
+                leaves.get(l).addPort(up);
+                spines.get(s).addPort(down);
+                leaves.get(l).addNeighbor(spines.get(s).getName(), 1, leaves.get(l).getInterfaces().size() - 1);
+                spines.get(s).addNeighbor(leaves.get(l).getName(), 1, spines.get(s).getInterfaces().size() - 1);
+            }
+        }
+        for (int l = 0; l < leafCount; l++) {
+            for (int other = 0; other < leafCount; other++) {
+                if (other == l) {
+                    continue;
+                }
+                for (int s = 0; s < spineCount; s++) {
+                    leaves.get(l).addEqualCostRoute(hostSubnet(other), 24, uplink(l, s, spineCount) | 2);
+                }
+            }
+        }
+        for (int s = 0; s < spineCount; s++) {
+            for (int l = 0; l < leafCount; l++) {
+                spines.get(s).addRoute(hostSubnet(l), 24, uplink(l, s, spineCount) | 1);
+            }
+        }
+        routers.addAll(leaves);
+        routers.addAll(spines);
+    }
+
+    public static int hostSubnet(int leaf) {
+        return 0x0A000000 | (leaf << 8); // 10.x.y.0
+    }
+
+    public static int hostAddress(int leaf, int host) {
+        return hostSubnet(leaf) | (host + 10);
+    }
+
+    private static int uplink(int leaf, int spine, int spineCount) {
+        return 0xAC100000 + (leaf * spineCount + spine) * 4;
+    }
+
+    private static String macFor(int role, int a, int b) {
+        return Device.formatMac(((long) role << 40) | ((long) a << 20) | b);
+    }
+
+    public List<Router> getLeaves() { return leaves; }
+    public List<Router> getSpines() { return spines; }
+    public List<Router> getRouters() { return routers; }
+}
+
+// Min-heap of (fair share, link) pairs used by the water-filling solver
+class ShareHeap {
+    private double[] shares = new double[64];
+    private int[] links = new int[64];
+    private int size;
+
+    public boolean isEmpty() { return size == 0; }
+    public void clear() { size = 0; }
+    public double peekShare() { return shares[0]; }
+    public int peekLink() { return links[0]; }
+
+    public void push(double share, int link) {
+        if (size == shares.length) {
+            shares = Arrays.copyOf(shares, size * 2);
+            links = Arrays.copyOf(links, size * 2);
+        }
+        int i = size++;
+        while (i > 0 && shares[(i - 1) >>> 1] > share) {
+            shares[i] = shares[(i - 1) >>> 1];
+            links[i] = links[(i - 1) >>> 1];
+            i = (i - 1) >>> 1;
+        }
+        shares[i] = share;
+        links[i] = link;
+    }
+
+    public void pop() {
+        size--;
+        double share = shares[size];
+        int link = links[size];
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && shares[child + 1] < shares[child]) {
+                child++;
+            }
+            if (shares[child] >= share) {
+                break;
+            }
+            shares[i] = shares[child];
+            links[i] = links[child];
+            i = child;
+        }
+        shares[i] = share;
+        links[i] = link;
+    }
+}
+
+// Flow-level (fluid) approximation. Flows follow the paths given by the Router
+// routing tables and share router egress links max-min fairly. Arrivals and
+// departures re-solve only the flows on the links they cross, with every other
+// flow held at its current rate; solveAll() gives the exact global allocation.
+// When any router's routes change, cached paths are dropped and flows re-routed.
+class FlowModel {
+    private static final int[] NO_PATH = new int[0];
+
+    private List<Router> routers;
+    private Map<Router, Integer> routerIndex = new HashMap<>();
+    private Map<RouterPort, Integer> linkIndex = new HashMap<>();
+    private Map<Integer, RouterPort> portByAddress = new HashMap<>();
+    private Map<Long, int[]> pathCache = new HashMap<>();
+    private long pathGeneration;
+
+    // Links (router egress ports)
+    private double[] capacity;
+    private double[] allocated; // sum of the current rates of the flows on the link
+    private int[][] linkFlows;
+    private int[] linkFlowCount;
+
+    // Flows
+    private int[][] flowPath = new int[1024][];
+    private double[] flowRate = new double[1024];
+    private int[] flowSource = new int[1024];
+    private int[] flowDestination = new int[1024];
+    private int[] flowHashes = new int[1024];
+    private int[] freeFlows = new int[1024];
+    private int freeCount;
+    private int flowSlots;
+    private int activeFlows;
+
+    // Links touched since the last solve
+    private int[] dirtyLinks = new int[64];
+    private int dirtyCount;
+
+    // Solver scratch, stamped with an epoch so nothing is cleared between solves
+    private int epoch;
+    private int[] linkMark;
+    private int[] flowMark = new int[1024];
+    private int[] frozenMark = new int[1024];
+    private double[] remaining;
+    private int[] unfrozen;
+    private int[] componentLinks;
+    private ShareHeap heap = new ShareHeap();
+
+    private long solves;
+    private long flowsResolved;
+    private long solveNanos;
+    private long reroutes;
+    private int unroutable; // active flows left without a path by the last reroute
+
+    public FlowModel(List<Router> routers, double defaultCapacity) {
+        this.routers = new ArrayList<>(routers);
+        this.pathGeneration = Router.getFabricGeneration();
+        for (Router router : routers) {
+            routerIndex.put(router, routerIndex.size());
+            for (RouterPort port : router.getPorts()) {
+                linkIndex.put(port, linkIndex.size());
+                portByAddress.put(port.getAddress(), port);
+            }
+        }
+        int links = linkIndex.size();
+        capacity = new double[links];
+        Arrays.fill(capacity, defaultCapacity);
+        allocated = new double[links];
+        linkFlows = new int[links][4];
+        linkFlowCount = new int[links];
+        linkMark = new int[links];
+        remaining = new double[links];
+        unfrozen = new int[links];
+        componentLinks = new int[links];
+    }
+
+    public void setCapacity(RouterPort port, double bitsPerSecond) {
+        capacity[linkIndex.get(port)] = bitsPerSecond;
+    }
+
+    public int getActiveFlows() { return activeFlows; }
+    public double getRate(int flow) { return flowRate[flow]; }
+    public long getSolves() { return solves; }
+    public long getFlowsResolved() { return flowsResolved; }
+    public long getSolveNanos() { return solveNanos; }
+    public long getReroutes() { return reroutes; }
+    public int getUnroutable() { return unroutable; }
+
+    // Egress links from the source router to the destination, walking each hop's routing
+    // table. Flows in the same equal-cost bucket share a path, so paths are cached per bucket
+    // until a router's routes change.
+    public int[] path(Router source, int destination, int flowHash) {
+        long generation = Router.getFabricGeneration();
+        if (generation != pathGeneration) {
+            pathCache.clear();
+            pathGeneration = generation;
+        }
+        int bucket = flowHash & (NextHopGroup.BUCKETS - 1);
+        long key = (((long) routerIndex.get(source) << 8 | bucket) << 32) | (destination & 0xFFFFFFFFL);
+        int[] cached = pathCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int[] hops = new int[8];
+        int length = 0;
+        Router router = source;
+        while (router != null && length < 64) {
+            int nextHop = router.nextHop(destination, flowHash);
+            if (nextHop == 0) {
+                return null;
+            }
+            RouterPort egress = router.egressPort(nextHop);
+            Integer link = egress == null ? null : linkIndex.get(egress);
+            if (link == null) {
+                return null; // next hop is down or leaves the modelled fabric
+            }
+            if (length == hops.length) {
+                hops = Arrays.copyOf(hops, length * 2);
+            }
+            hops[length++] = link;
+            if (nextHop == destination) {
+                int[] path = Arrays.copyOf(hops, length);
+                pathCache.put(key, path);
+                return path;
+            }
+            RouterPort neighbor = portByAddress.get(nextHop);
+            if (neighbor != null && !neighbor.getInterface().getStatus()) {
+                return null; // the far end of the link is shut
+            }
+            router = neighbor == null ? null : neighbor.getRouter();
+        }
+        return null;
+    }
+
+    // Add a flow entering the fabric at the source router; returns its id or -1 if unroutable
+    public int addFlow(Router source, int destination, int flowHash) {
+        int[] path = path(source, destination, flowHash);
+        if (path == null) {
+            return -1;
+        }
+        int flow;
+        if (freeCount > 0) {
+            flow = freeFlows[--freeCount];
+        } else {
+            if (flowSlots == flowPath.length) {
+                growFlows();
+            }
+            flow = flowSlots++;
+        }
+        flowRate[flow] = 0;
+        flowSource[flow] = routerIndex.get(source);
+        flowDestination[flow] = destination;
+        flowHashes[flow] = flowHash;
+        place(flow, path);
+        activeFlows++;
+        return flow;
+    }
+
+    public void removeFlow(int flow) {
+        unplace(flow);
+        flowPath[flow] = null;
+        if (freeCount == freeFlows.length) {
+            freeFlows = Arrays.copyOf(freeFlows, freeCount * 2);
+        }
+        freeFlows[freeCount++] = flow;
+        activeFlows--;
+    }
+
+    private void place(int flow, int[] path) {
+        flowPath[flow] = path;
+        for (int link : path) {
+            if (linkFlowCount[link] == linkFlows[link].length) {
+                linkFlows[link] = Arrays.copyOf(linkFlows[link], linkFlowCount[link] * 2);
+            }
+            linkFlows[link][linkFlowCount[link]++] = flow;
+            markDirty(link);
+        }
+    }
+
+    // Take the flow off its links, releasing its rate
+    private void unplace(int flow) {
+        setRate(flow, 0);
+        for (int link : flowPath[flow]) {
+            int[] flows = linkFlows[link];
+            for (int i = 0; i < linkFlowCount[link]; i++) {
+                if (flows[i] == flow) {
+                    flows[i] = flows[--linkFlowCount[link]];
+                    break;
+                }
+            }
+            markDirty(link);
+        }
+    }
+
+    private void setRate(int flow, double rate) {
+        double delta = rate - flowRate[flow];
+        for (int link : flowPath[flow]) {
+            allocated[link] += delta;
+        }
+        flowRate[flow] = rate;
+    }
+
+    // Move active flows whose path changed with the routes; unroutable flows get no links
+    private void reroute() {
+        pathCache.clear();
+        pathGeneration = Router.getFabricGeneration();
+        unroutable = 0;
+        for (int flow = 0; flow < flowSlots; flow++) {
+            if (flowPath[flow] == null) {
+                continue;
+            }
+            int[] path = path(routers.get(flowSource[flow]), flowDestination[flow], flowHashes[flow]);
+            if (path == null) {
+                path = NO_PATH;
+                unroutable++;
+            }
+            if (!Arrays.equals(path, flowPath[flow])) {
+                unplace(flow);
+                place(flow, path);
+                reroutes++;
+            }
+        }
+    }
+
+    private void markDirty(int link) {
+        if (dirtyCount == dirtyLinks.length) {
+            dirtyLinks = Arrays.copyOf(dirtyLinks, dirtyCount * 2);
+        }
+        dirtyLinks[dirtyCount++] = link;
+    }
+
+    // Re-solve the flows on links changed since the last update. The links those flows
+    // cross keep the capacity taken by flows that are not re-solved.
+    public void update() {
+        if (Router.getFabricGeneration() != pathGeneration) {
+            reroute();
+        }
+        if (dirtyCount == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        epoch++;
+        int linkCount = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            linkCount = addLink(dirtyLinks[i], linkCount);
+        }
+        dirtyCount = 0;
+        // Flows on a changed link are re-solved; their current rates go back to every link
+        // they cross, and only those links are filled
+        int dirty = linkCount;
+        for (int head = 0; head < dirty; head++) {
+            int link = componentLinks[head];
+            for (int i = 0; i < linkFlowCount[link]; i++) {
+                int flow = linkFlows[link][i];
+                if (flowMark[flow] == epoch) {
+                    continue;
+                }
+                flowMark[flow] = epoch;
+                for (int other : flowPath[flow]) {
+                    linkCount = addLink(other, linkCount);
+                    remaining[other] += flowRate[flow];
+                    unfrozen[other]++;
+                }
+            }
+        }
+        waterFill(linkCount);
+        solves++;
+        solveNanos += System.nanoTime() - start;
+    }
+
+    // Include the link in this solve with the capacity flows held at their rates leave free
+    private int addLink(int link, int linkCount) {
+        if (linkMark[link] == epoch) {
+            return linkCount;
+        }
+        linkMark[link] = epoch;
+        componentLinks[linkCount] = link;
+        unfrozen[link] = 0;
+        remaining[link] = capacity[link] - allocated[link];
+        return linkCount + 1;
+    }
+
+    // Exact recompute of every flow, for comparison with the local update
+    public void solveAll() {
+        Arrays.fill(allocated, 0);
+        Arrays.fill(flowRate, 0);
+        for (int link = 0; link < capacity.length; link++) {
+            markDirty(link);
+        }
+        update();
+    }
+
+    // Progressive filling over the re-solved flows: repeatedly saturate the link with the
+    // smallest fair share and freeze its flows at that rate. Fair shares never decrease as
+    // flows freeze, so stale heap entries are simply re-pushed with their current share.
+    private void waterFill(int linkCount) {
+        heap.clear();
+        for (int i = 0; i < linkCount; i++) {
+            int link = componentLinks[i];
+            if (unfrozen[link] > 0) {
+                heap.push(Math.max(remaining[link], 0) / unfrozen[link], link);
+            }
+        }
+        while (!heap.isEmpty()) {
+            double share = heap.peekShare();
+            int link = heap.peekLink();
+            heap.pop();
+            if (unfrozen[link] == 0) {
+                continue;
+            }
+            double current = Math.max(remaining[link], 0) / unfrozen[link];
+            if (current > share * (1 + 1e-12)) {
+                heap.push(current, link);
+                continue;
+            }
+            for (int i = 0; i < linkFlowCount[link]; i++) {
+                int flow = linkFlows[link][i];
+                if (flowMark[flow] != epoch || frozenMark[flow] == epoch) {
+                    continue; // held at its rate, or already frozen in this solve
+                }
+                frozenMark[flow] = epoch;
+                setRate(flow, current);
+                flowsResolved++;
+                for (int other : flowPath[flow]) {
+                    remaining[other] -= current;
+                    unfrozen[other]--;
+                }
+            }
+        }
+    }
+
+    private void growFlows() {
+        int size = flowPath.length * 2;
+        flowPath = Arrays.copyOf(flowPath, size);
+        flowRate = Arrays.copyOf(flowRate, size);
+        flowSource = Arrays.copyOf(flowSource, size);
+        flowDestination = Arrays.copyOf(flowDestination, size);
+        flowHashes = Arrays.copyOf(flowHashes, size);
+        flowMark = Arrays.copyOf(flowMark, size);
+        frozenMark = Arrays.copyOf(frozenMark, size);
+    }
+}
+
+// Main class to estimate per-flow throughput on a leaf-spine fabric
+public class FlowLevel {
+    public static void main(String[] args) {
+        int leafCount = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int spineCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int hostsPerLeaf = args.length > 2 ? Integer.parseInt(args[2]) : 48;
+        int flowCount = args.length > 3 ? Integer.parseInt(args[3]) : 20_000;
+        int batch = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+
+        long start = System.nanoTime();
+        LeafSpineFabric fabric = new LeafSpineFabric(leafCount, spineCount);
+        FlowModel model = new FlowModel(fabric.getRouters(), 40e9);
+        for (Router leaf : fabric.getLeaves()) {
+            model.setCapacity(leaf.getPorts().get(0), 10e9); // host-facing port
+        }
+        System.out.printf("Fabric: %d leaves, %d spines, %d hosts (built in %.1f ms)%n", leafCount, spineCount,
+                leafCount * hostsPerLeaf, (System.nanoTime() - start) / 1e6);
+
+        Random random = new Random(1);
+        int[] flows = new int[flowCount];
+        start = System.nanoTime();
+        for (int i = 0; i < flowCount; i++) {
+            flows[i] = addRandomFlow(model, fabric, random, hostsPerLeaf);
+            if (i % batch == batch - 1) {
+                model.update();
+            }
+        }
+        model.update();
+        double arrivalMillis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%d flow arrivals in batches of %d: %.1f ms (%d solves, %.3f ms per solve)%n",
+                flowCount, batch, arrivalMillis, model.getSolves(), model.getSolveNanos() / 1e6 / model.getSolves());
+        displayRates(model, flows);
+
+        long solvesBefore = model.getSolves();
+        long nanosBefore = model.getSolveNanos();
+        for (int i = 0; i < flowCount; i += 2) {
+            model.removeFlow(flows[i]);
+            flows[i] = -1;
+            if (i % (2 * batch) == 2 * batch - 2) {
+                model.update();
+            }
+        }
+        model.update();
+        System.out.printf("%d flow departures: %.3f ms per solve%n", flowCount / 2,
+                (model.getSolveNanos() - nanosBefore) / 1e6 / (model.getSolves() - solvesBefore));
+        displayRates(model, flows);
+
+        // One flow replaced at a time: each update re-solves only the flows sharing a link with it
+        int churn = Math.min(1000, flowCount / 2);
+        solvesBefore = model.getSolves();
+        nanosBefore = model.getSolveNanos();
+        long resolvedBefore = model.getFlowsResolved();
+        for (int i = 0; i < churn; i++) {
+            int slot = 2 * i + 1;
+            model.removeFlow(flows[slot]);
+            flows[slot] = addRandomFlow(model, fabric, random, hostsPerLeaf);
+            model.update();
+        }
+        long solved = model.getSolves() - solvesBefore;
+        System.out.printf("%d single-flow replacements: %.3f ms and %d flows re-solved per update%n", churn,
+                (model.getSolveNanos() - nanosBefore) / 1e6 / solved, (model.getFlowsResolved() - resolvedBefore) / solved);
+        double localTotal = aggregate(model, flows);
+
+        nanosBefore = model.getSolveNanos();
+        model.solveAll();
+        System.out.printf("Full re-solve of every flow: %.3f ms, aggregate %.1f Gb/s (local updates %.1f Gb/s)%n",
+                (model.getSolveNanos() - nanosBefore) / 1e6, aggregate(model, flows) / 1e9, localTotal / 1e9);
+
+        // Shut the first leaf's uplink to the first spine: flows leaving the leaf move to the
+        // other spines, flows the first spine still sends down the link are left without a path
+        Router leaf = fabric.getLeaves().get(0);
+        leaf.setInterfaceStatus(1, false);
+        model.update();
+        model.solveAll();
+        System.out.println("After " + leaf.getName() + " " + leaf.getInterfaces().get(1).getName() + " went down: "
+                + model.getReroutes() + " flows re-routed, " + model.getUnroutable() + " without a path");
+        displayRates(model, flows);
+    }
+
+    private static int addRandomFlow(FlowModel model, LeafSpineFabric fabric, Random random, int hostsPerLeaf) {
+        int leafCount = fabric.getLeaves().size();
+        int source = random.nextInt(leafCount);
+        int destination = (source + 1 + random.nextInt(leafCount - 1)) % leafCount;
+        int sourceAddress = LeafSpineFabric.hostAddress(source, random.nextInt(hostsPerLeaf));
+        int destinationAddress = LeafSpineFabric.hostAddress(destination, random.nextInt(hostsPerLeaf));
+        int flowHash = Router.flowHash(sourceAddress, destinationAddress, IPv4Header.PROTOCOL_TCP,
+                1024 + random.nextInt(60000), 80);
+        return model.addFlow(fabric.getLeaves().get(source), destinationAddress, flowHash);
+    }
+
+    private static double aggregate(FlowModel model, int[] flows) {
+        double total = 0;
+        for (int flow : flows) {
+            if (flow >= 0) {
+                total += model.getRate(flow);
+            }
+        }
+        return total;
+    }
+
+    private static void displayRates(FlowModel model, int[] flows) {
+        double[] rates = new double[model.getActiveFlows()];
+        int n = 0;
+        double total = 0;
+        for (int flow : flows) {
+            if (flow >= 0) {
+                rates[n++] = model.getRate(flow);
+                total += model.getRate(flow);
+            }
+        }
+        Arrays.sort(rates, 0, n);
+        System.out.printf("\t\t %d flows, aggregate %.1f Gb/s, per flow min %.3f / median %.3f / max %.3f Gb/s%n",
+                n, total / 1e9, rates[0] / 1e9, rates[n / 2] / 1e9, rates[n - 1] / 1e9);
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.Random;
+
+// Main class to compare one-at-a-time and burst forwarding through one router
+public class ForwardingBenchmark {
+    public static void main(String[] args) {
+        int portCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int destinations = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int packets = args.length > 2 ? Integer.parseInt(args[2]) : 20_000_000;
+
+        // One ingress port and portCount egress ports, each with a /24 of hosts behind it
+        Router router = new Router("Router1");
+        Interface ingressInterface = new Interface("GigabitEthernet0/0", "00:1A:2B:00:00:00");
+        ingressInterface.configure("10.255.0.1", "255.255.255.0");
+        RouterPort ingress = router.addPort(ingressInterface);
+        FrameSink[] sinks = new FrameSink[portCount];
+        for (int p = 0; p < portCount; p++) {
+            Interface iface = new Interface("GigabitEthernet0/" + (p + 1), Device.formatMac(0x001A2B000001L + p));
+            iface.configure(0x0A000001 | (p << 8), IPv4.mask(24));
+            sinks[p] = new FrameSink();
+            router.addPort(iface).connect(sinks[p]);
+        }
+        int[] addresses = new int[destinations];
+        for (int d = 0; d < destinations; d++) {
+            addresses[d] = 0x0A000000 | ((d % portCount) << 8) | (10 + d / portCount);
+            router.addArpEntry(IPv4.format(addresses[d]), Device.formatMac(0x0200_0000_0000L + d));
+        }
+
+        // A pool of frames whose destinations are spread over the hosts
+        int poolSize = 4096;
+        PacketBuffer[] pool = new PacketBuffer[poolSize];
+        Random random = new Random(1);
+        for (int i = 0; i < poolSize; i++) {
+            pool[i] = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, 64);
+            pool[i].append(new byte[64], 64);
+            pool[i].putShort(pool[i].prepend(TransportLayer.HEADER_LENGTH), 1024 + random.nextInt(16));
+            IPv4Header.push(pool[i], IPv4.parse("10.255.0.10"), addresses[random.nextInt(destinations)], IPv4Header.PROTOCOL_TCP);
+            EthernetFrame.push(pool[i], ingress.getMacBits(), 0, EthernetFrame.TYPE_IPV4);
+        }
+
+        System.out.println("Forwarding " + packets + " packets to " + destinations + " hosts over " + portCount + " ports");
+        for (int round = 0; round < 2; round++) { // first round warms up the JIT
+            report(round, "one at a time", router, pool, packets, 1, sinks);
+            for (int burst : new int[] { 8, 32, 256 }) {
+                report(round, "burst of " + burst, router, pool, packets, burst, sinks);
+            }
+        }
+
+        // Same paths with the flow cache in front of the route and ARP lookups
+        router.enableFlowCache(1024, false);
+        for (int round = 0; round < 2; round++) {
+            report(round, "flow cache", router, pool, packets, 1, sinks);
+            for (int burst : new int[] { 8, 32, 256 }) {
+                report(round, "cache, " + burst, router, pool, packets, burst, sinks);
+            }
+        }
+        router.getFlowCache().displayStatistics();
+        router.addArpEntry(IPv4.format(addresses[0]), Device.formatMac(0x0200_0000_0000L)); // invalidates every entry
+        report(1, "after ARP change", router, pool, packets / 10, 1, sinks);
+        router.getFlowCache().displayStatistics();
+    }
+
+    private static double run(Router router, PacketBuffer[] pool, int packets, int burst) {
+        PacketBuffer[] frames = new PacketBuffer[burst];
+        int next = 0;
+        long start = System.nanoTime();
+        for (int sent = 0; sent < packets; sent += burst) {
+            int count = Math.min(burst, packets - sent);
+            for (int i = 0; i < count; i++) {
+                PacketBuffer frame = pool[next];
+                next = (next + 1) & (pool.length - 1);
+                frame.array()[frame.start() + EthernetFrame.HEADER_LENGTH] = (byte) IPv4Header.DEFAULT_TTL;
+                frames[i] = frame;
+            }
+            if (burst == 1) {
+                router.forwardFrame(frames[0]);
+            } else {
+                router.forwardBurst(frames, count);
+            }
+        }
+        return packets / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void report(int round, String mode, Router router, PacketBuffer[] pool, int packets, int burst,
+            FrameSink[] sinks) {
+        long frames = -total(sinks, false);
+        long batches = -total(sinks, true);
+        double packetsPerSecond = run(router, pool, packets, burst);
+        frames += total(sinks, false);
+        batches += total(sinks, true);
+        if (round > 0) {
+            System.out.printf("%-14s %8.2f Mpps (%.1f frames per link-layer call)%n", mode,
+                    packetsPerSecond / 1e6, frames / (double) batches);
+        }
+    }
+
+    private static long total(FrameSink[] sinks, boolean batches) {
+        long total = 0;
+        for (FrameSink sink : sinks) {
+            total += batches ? sink.getBatches() : sink.getFrames();
+        }
+        return total;
+    }
+}
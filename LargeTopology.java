@@ -0,0 +1,516 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Open-addressing map from a packed MAC address to a device ID
+class MacTable {
+    private long[] keys = new long[16];
+    private int[] values = new int[16]; // ID + 1, 0 marks an empty slot
+    private int size;
+
+    public int size() { return size; }
+
+    public void put(long mac, int id) {
+        if ((size + 1) * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        int mask = values.length - 1;
+        int i = slot(mac) & mask;
+        while (values[i] != 0 && keys[i] != mac) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == 0) {
+            size++;
+        }
+        keys[i] = mac;
+        values[i] = id + 1;
+    }
+
+    // Device with the address, or -1
+    public int get(long mac) {
+        int mask = values.length - 1;
+        int i = slot(mac) & mask;
+        while (values[i] != 0) {
+            if (keys[i] == mac) {
+                return values[i] - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int slot(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != 0) {
+                put(oldKeys[i], oldValues[i] - 1);
+            }
+        }
+    }
+}
+
+// End devices, hubs and switches kept as parallel primitive arrays addressed by integer
+// IDs. A device costs a few dozen bytes instead of several objects, strings and map
+// entries, and scans over all devices walk contiguous arrays. Views give the usual
+// Device and EndDevice API over an ID without copying anything.
+class DeviceRegistry {
+    public static final byte END_DEVICE = 0;
+    public static final byte HUB = 1;
+    public static final byte SWITCH = 2;
+    private static final long MAC_BASE = 0x020000000000L; // locally administered addresses
+
+    private int size;
+    private byte[] kind = new byte[16];
+    private long[] mac = new long[16];
+    private int[] port = new int[16];
+    private short[] namePrefix = new short[16]; // names are a shared prefix and a number
+    private int[] nameNumber = new int[16];
+    private int[] link = new int[16]; // hub or switch the device is cabled to, or -1
+    private int[] firstMember = new int[16]; // first device cabled to a hub or switch, or -1
+    private int[] nextMember = new int[16]; // next device cabled to the same hub or switch
+    private int[] memberCount = new int[16];
+    private List<String> prefixes = new ArrayList<>();
+    private MacTable macTable = new MacTable();
+    // What each switch has learned: keyed by switch and device ID, the member or uplink
+    // the device was last heard through
+    private MacTable learnedPorts = new MacTable();
+
+    private FrameListener listener; // for end devices without a listener of their own
+    private FrameListener[] listeners = new FrameListener[16]; // per end device, set through its view
+    private EndDeviceView receiver = new EndDeviceView(this, -1); // reused for shared listener callbacks
+    private Map<Integer, Device> outsideLinks = new HashMap<>(); // hub or switch objects outside the registry
+    private long framesDelivered;
+    private long framesFlooded;
+
+    public int size() { return size; }
+    public byte getKind(int id) { return kind[id]; }
+    public long getMacBits(int id) { return mac[id]; }
+    public int getPort(int id) { return port[id]; }
+    public int getLink(int id) { return link[id]; }
+    public int getFirstMember(int id) { return firstMember[id]; }
+    public int getNextMember(int id) { return nextMember[id]; }
+    public int getMemberCount(int id) { return memberCount[id]; }
+    public long getFramesDelivered() { return framesDelivered; }
+    public long getFramesFlooded() { return framesFlooded; }
+
+    public String getName(int id) {
+        return prefixes.get(namePrefix[id]) + " " + nameNumber[id];
+    }
+
+    public int addEndDevice(String prefix, int number, int port) {
+        int id = add(END_DEVICE, prefix, number);
+        this.port[id] = port;
+        return id;
+    }
+
+    public int addHub(String prefix, int number) {
+        return add(HUB, prefix, number);
+    }
+
+    public int addSwitch(String prefix, int number) {
+        return add(SWITCH, prefix, number);
+    }
+
+    // Cable a device, hub or switch to a hub or switch
+    public void connect(int device, int node) {
+        outsideLinks.remove(device);
+        link[device] = node;
+        nextMember[device] = firstMember[node];
+        firstMember[node] = device;
+        memberCount[node]++;
+    }
+
+    // Cable an end device to a Hub or Switch object. Frames the device sends go to that
+    // object, which delivers frames back through the device's view like any other EndDevice.
+    public void connectOutside(int device, Device node) {
+        outsideLinks.put(device, node);
+    }
+
+    // Static entry in one switch for a device, through the member or uplink on the way to it
+    public void learnAddress(int node, int device) {
+        learnedPorts.put(learnedKey(node, device), towards(node, device));
+    }
+
+    public int getLearnedCount() { return learnedPorts.size(); }
+
+    // Device with the address, or -1
+    public int find(long macBits) {
+        return macTable.get(macBits);
+    }
+
+    // Listener for every end device that has none of its own. The receiver it is handed is
+    // one view moved to each receiving device in turn, so it is only valid during the
+    // callback; keep its ID, or a view from view(id), rather than the view itself.
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    // Listener for one end device, or null to fall back to the shared listener
+    public void setFrameListener(int id, FrameListener listener) {
+        listeners[id] = listener;
+    }
+
+    public Device view(int id) {
+        return kind[id] == END_DEVICE ? new EndDeviceView(this, id) : new NodeView(this, id);
+    }
+
+    // Frame sent by a device onto its cable
+    public void transmit(int from, PacketBuffer frame) {
+        if (link[from] >= 0) {
+            forward(link[from], from, frame);
+        } else if (!outsideLinks.isEmpty()) {
+            Device outside = outsideLinks.get(from);
+            if (outside != null) {
+                outside.receiveFrame(frame);
+            }
+        }
+    }
+
+    // Frame arriving at a hub or switch from the device with the given ID. A switch
+    // learns the source behind that device, sends the frame toward a destination it has
+    // learned and floods it otherwise; a hub always floods.
+    public void forward(int node, int from, PacketBuffer frame) {
+        if (kind[node] == SWITCH) {
+            int source = macTable.get(EthernetFrame.source(frame));
+            if (source >= 0 && from >= 0) {
+                learnedPorts.put(learnedKey(node, source), from);
+            }
+            int destination = macTable.get(EthernetFrame.destination(frame));
+            int next = destination < 0 ? -1 : learnedPorts.get(learnedKey(node, destination));
+            if (next >= 0) {
+                if (next != from) {
+                    send(next, node, frame);
+                }
+                return;
+            }
+        }
+        framesFlooded++;
+        int mark = frame.start();
+        for (int member = firstMember[node]; member >= 0; member = nextMember[member]) {
+            if (member != from) {
+                send(member, node, frame);
+                frame.setStart(mark);
+            }
+        }
+        if (link[node] >= 0 && link[node] != from) {
+            send(link[node], node, frame);
+            frame.setStart(mark);
+        }
+    }
+
+    // Frame handed to an end device by its hub or switch
+    public void receive(int id, PacketBuffer frame) {
+        long destination = EthernetFrame.destination(frame);
+        FrameListener own = listeners[id];
+        if ((own == null && listener == null) || (destination != mac[id] && destination != EthernetFrame.BROADCAST)) {
+            return;
+        }
+        framesDelivered++;
+        frame.pull(EthernetFrame.HEADER_LENGTH);
+        if (own != null) {
+            own.onFrame(receiver, frame); // views wrap their own listeners and pass themselves instead
+            return;
+        }
+        receiver.moveTo(id);
+        listener.onFrame(receiver, frame);
+    }
+
+    private void send(int device, int from, PacketBuffer frame) {
+        if (kind[device] == END_DEVICE) {
+            receive(device, frame);
+        } else {
+            forward(device, from, frame);
+        }
+    }
+
+    private static long learnedKey(int node, int device) {
+        return (long) node << 32 | device;
+    }
+
+    // Member of the node on the way down to the destination, or the node's own uplink
+    // when the destination is not below it
+    private int towards(int node, int destination) {
+        int device = destination;
+        while (link[device] >= 0 && link[device] != node) {
+            device = link[device];
+        }
+        return link[device] == node ? device : link[node];
+    }
+
+    private int add(byte deviceKind, String prefix, int number) {
+        if (size == kind.length) {
+            grow(size * 2);
+        }
+        int prefixIndex = prefixes.indexOf(prefix);
+        if (prefixIndex < 0) {
+            prefixes.add(prefix);
+            prefixIndex = prefixes.size() - 1;
+        }
+        int id = size++;
+        kind[id] = deviceKind;
+        mac[id] = MAC_BASE + id;
+        namePrefix[id] = (short) prefixIndex;
+        nameNumber[id] = number;
+        link[id] = -1;
+        firstMember[id] = -1;
+        nextMember[id] = -1;
+        macTable.put(mac[id], id);
+        return id;
+    }
+
+    private void grow(int capacity) {
+        kind = Arrays.copyOf(kind, capacity);
+        mac = Arrays.copyOf(mac, capacity);
+        port = Arrays.copyOf(port, capacity);
+        namePrefix = Arrays.copyOf(namePrefix, capacity);
+        nameNumber = Arrays.copyOf(nameNumber, capacity);
+        link = Arrays.copyOf(link, capacity);
+        firstMember = Arrays.copyOf(firstMember, capacity);
+        nextMember = Arrays.copyOf(nextMember, capacity);
+        memberCount = Arrays.copyOf(memberCount, capacity);
+        listeners = Arrays.copyOf(listeners, capacity);
+    }
+}
+
+// EndDevice API over one registry entry. A view holds only the registry and the ID, so it
+// can be created on demand and thrown away; name and MAC strings are built when asked for.
+class EndDeviceView extends EndDevice {
+    private DeviceRegistry registry;
+    private int id;
+
+    public EndDeviceView(DeviceRegistry registry, int id) {
+        super(id < 0 ? 0 : registry.getMacBits(id));
+        this.registry = registry;
+        this.id = id;
+    }
+
+    public int getId() { return id; }
+
+    // Point the view at another device, so one view can walk the whole registry
+    public void moveTo(int id) {
+        this.id = id;
+        this.macBits = registry.getMacBits(id);
+        this.macAddress = null;
+    }
+
+    public String getName() { return registry.getName(id); }
+    public int getPort() { return registry.getPort(id); }
+
+    public void display() {
+        System.out.println("EndDevice: " + getName());
+        System.out.println("\t\t MAC ADDRESS: " + getMacAddress());
+        if (getPort() != 0) {
+            System.out.println("\t\t PORT NUMBER: " + getPort());
+        }
+    }
+
+    // Hubs and switches in the same registry are cabled inside it; any other Device, such
+    // as a Switch or Hub object, is kept as the device's outside link
+    public void connect(Device link) {
+        if (link instanceof NodeView && ((NodeView) link).getRegistry() == registry) {
+            registry.connect(id, ((NodeView) link).getId());
+        } else {
+            registry.connectOutside(id, link);
+        }
+    }
+
+    // The listener is this device's own and is handed this view, which stays valid
+    public void setFrameListener(FrameListener listener) {
+        registry.setFrameListener(id, listener == null ? null : (receiver, frame) -> listener.onFrame(this, frame));
+    }
+
+    public void transmitFrame(PacketBuffer frame) {
+        registry.transmit(id, frame);
+    }
+
+    public void receiveFrame(PacketBuffer frame) {
+        registry.receive(id, frame);
+    }
+
+    public void sendData(EndDevice receiver, int data, Star star) {
+        System.out.println("Sending data from " + getName() + " to " + receiver.getName() + " via Star network.");
+        System.out.println("Data: " + data);
+    }
+}
+
+// Device API over a hub or switch in the registry
+class NodeView extends Device {
+    private DeviceRegistry registry;
+    private int id;
+
+    public NodeView(DeviceRegistry registry, int id) {
+        super(registry.getMacBits(id));
+        this.registry = registry;
+        this.id = id;
+    }
+
+    public DeviceRegistry getRegistry() { return registry; }
+    public int getId() { return id; }
+
+    public void display() {
+        boolean isSwitch = registry.getKind(id) == DeviceRegistry.SWITCH;
+        System.out.println((isSwitch ? "Switch: " : "HUB: ") + registry.getName(id));
+        System.out.println("\t\t MAC ADDRESS: " + getMacAddress());
+        System.out.println("\t\t " + (isSwitch ? "Switch" : "HUB") + " with " + registry.getMemberCount(id) + " devices");
+    }
+
+    // Frames from outside the registry enter as if sent by their source device
+    public void receiveFrame(PacketBuffer frame) {
+        registry.forward(id, registry.find(EthernetFrame.source(frame)), frame);
+    }
+}
+
+// Main class to build a million-host switched network in the registry and compare its
+// footprint with the same hosts as EndDevice and Switch objects
+public class LargeTopology {
+    public static void main(String[] args) {
+        int hosts = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int fanout = args.length > 1 ? Integer.parseInt(args[1]) : 48;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 2_000_000;
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        DeviceRegistry registry = build(hosts, fanout);
+        double buildSeconds = (System.nanoTime() - start) / 1e9;
+        long registryBytes = usedHeap() - heapBefore;
+        System.out.printf("Registry: %d devices (%d hosts) built in %.2f s, %.1f MB, %.0f bytes per device%n",
+                registry.size(), hosts, buildSeconds, registryBytes / 1e6, registryBytes / (double) registry.size());
+
+        // Objects for a tenth of the hosts, scaled up
+        int sample = Math.max(1, hosts / 10);
+        heapBefore = usedHeap();
+        start = System.nanoTime();
+        List<Switch> switches = buildObjects(sample, fanout);
+        buildSeconds = (System.nanoTime() - start) / 1e9 * hosts / sample;
+        long objectBytes = (usedHeap() - heapBefore) * hosts / sample;
+        System.out.printf("Objects:  %d hosts estimated from %d: %.2f s, %.1f MB, %.0f bytes per host%n",
+                hosts, sample, buildSeconds, objectBytes / 1e6, objectBytes / (double) hosts);
+        System.out.println("(" + switches.size() + " sample switches kept live while measuring)");
+
+        // Scan every device through the primitive arrays
+        start = System.nanoTime();
+        long ports = 0;
+        int endDevices = 0;
+        for (int id = 0; id < registry.size(); id++) {
+            if (registry.getKind(id) == DeviceRegistry.END_DEVICE) {
+                endDevices++;
+                ports += registry.getPort(id);
+            }
+        }
+        System.out.printf("Scan: %d end devices (port sum %d) in %.1f ms%n", endDevices, ports,
+                (System.nanoTime() - start) / 1e6);
+        int[] hostIds = new int[endDevices];
+        for (int id = 0, h = 0; id < registry.size(); id++) {
+            if (registry.getKind(id) == DeviceRegistry.END_DEVICE) {
+                hostIds[h++] = id;
+            }
+        }
+
+        // Views keep the object API for the few devices a scenario touches
+        EndDevice first = (EndDevice) registry.view(hostIds[0]);
+        first.display();
+        registry.view(registry.getLink(hostIds[0])).display();
+
+        // Random hosts announce themselves with a broadcast, so every switch learns them
+        long[] delivered = new long[1];
+        registry.setFrameListener((device, frame) -> delivered[0]++);
+        PacketBuffer frame = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, 64);
+        Random random = new Random(1);
+        int[] talkers = new int[Math.min(32, hostIds.length)];
+        start = System.nanoTime();
+        for (int i = 0; i < talkers.length; i++) {
+            talkers[i] = hostIds[random.nextInt(hostIds.length)];
+            frame.clear();
+            frame.append(64);
+            EthernetFrame.push(frame, EthernetFrame.BROADCAST, registry.getMacBits(talkers[i]), EthernetFrame.TYPE_IPV4);
+            registry.transmit(talkers[i], frame);
+        }
+        System.out.printf("Learning: %d hosts announced, %d switch entries, %.1f ms%n", talkers.length,
+                registry.getLearnedCount(), (System.nanoTime() - start) / 1e6);
+
+        // Unicast between the learned hosts, then one broadcast reaching everyone
+        for (int round = 0; round < 2; round++) { // first round warms up the JIT
+            delivered[0] = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                int sender = random.nextInt(talkers.length);
+                int from = talkers[sender];
+                int to = talkers.length > 1 ? talkers[(sender + 1 + random.nextInt(talkers.length - 1)) % talkers.length] : from;
+                frame.clear();
+                frame.append(64);
+                EthernetFrame.push(frame, registry.getMacBits(to), registry.getMacBits(from), EthernetFrame.TYPE_IPV4);
+                registry.transmit(from, frame);
+            }
+            if (round == 1) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("Unicast: %d of %d frames delivered, %.2f M frames/s%n", delivered[0], frames,
+                        frames / seconds / 1e6);
+            }
+        }
+        delivered[0] = 0;
+        start = System.nanoTime();
+        frame.clear();
+        frame.append(64);
+        EthernetFrame.push(frame, EthernetFrame.BROADCAST, registry.getMacBits(hostIds[0]), EthernetFrame.TYPE_IPV4);
+        registry.transmit(hostIds[0], frame);
+        System.out.printf("Broadcast: reached %d hosts in %.1f ms%n", delivered[0], (System.nanoTime() - start) / 1e6);
+    }
+
+    // Hosts on access switches of the given fanout, access switches under aggregation
+    // switches of the same fanout, and those under one core switch
+    static DeviceRegistry build(int hosts, int fanout) {
+        DeviceRegistry registry = new DeviceRegistry();
+        int core = registry.addSwitch("core", 1);
+        int aggregation = -1;
+        int access = -1;
+        for (int h = 0; h < hosts; h++) {
+            if (h % fanout == 0) {
+                int accessNumber = h / fanout;
+                if (accessNumber % fanout == 0) {
+                    aggregation = registry.addSwitch("aggregation", accessNumber / fanout + 1);
+                    registry.connect(aggregation, core);
+                }
+                access = registry.addSwitch("access", accessNumber + 1);
+                registry.connect(access, aggregation);
+            }
+            int host = registry.addEndDevice("host", h + 1, 1024 + h % 1000);
+            registry.connect(host, access);
+        }
+        return registry;
+    }
+
+    private static List<Switch> buildObjects(int hosts, int fanout) {
+        List<Switch> switches = new ArrayList<>();
+        Switch access = null;
+        for (int h = 0; h < hosts; h++) {
+            if (h % fanout == 0) {
+                access = new Switch(fanout, "access " + (h / fanout + 1));
+                switches.add(access);
+            }
+            EndDevice host = new EndDevice("host " + (h + 1), 1024 + h % 1000);
+            host.connect(access);
+            access.learnAddress(host);
+        }
+        return switches;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,376 @@
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// One step of a link pipeline. Stage 0 sits on the wire: frames are transmitted from the
+// last stage down to stage 0 and received from stage 0 up, each stage adding or removing
+// its own bytes in the shared buffer.
+interface LinkStage {
+    int PASS = 0;
+    int DROP = 1;
+    int RETRANSMIT = 2; // send the frame again starting from this stage
+
+    String getName();
+
+    int transmit(LinkPipeline link, PacketBuffer frame);
+
+    int receive(LinkPipeline link, PacketBuffer frame);
+
+    // The frame did not arrive intact; a reliable stage asks for it to be sent again
+    default int lost(LinkPipeline link, PacketBuffer frame) {
+        return DROP;
+    }
+}
+
+// Medium access by CSMA/CD: a collision costs a binary exponential backoff, and the
+// frame is abandoned after 16 attempts
+class CsmaCdStage implements LinkStage {
+    private static final int MAX_ATTEMPTS = 16;
+
+    private int collisionProbability; // percentage (0-100)
+    private long slotTime;
+    private Random random;
+    private int attempts;
+    private long collisions;
+
+    public CsmaCdStage(int collisionProbability, long slotTime, long seed) {
+        this.collisionProbability = collisionProbability;
+        this.slotTime = slotTime;
+        this.random = new Random(seed);
+    }
+
+    public String getName() { return "CSMA/CD"; }
+    public long getCollisions() { return collisions; }
+
+    public int transmit(LinkPipeline link, PacketBuffer frame) {
+        if (random.nextInt(100) >= collisionProbability) {
+            attempts = 0;
+            return PASS;
+        }
+        collisions++;
+        if (++attempts == MAX_ATTEMPTS) {
+            attempts = 0;
+            return DROP;
+        }
+        link.addDelay(random.nextInt(1 << Math.min(attempts, 10)) * slotTime);
+        return RETRANSMIT;
+    }
+
+    public int receive(LinkPipeline link, PacketBuffer frame) {
+        return PASS;
+    }
+}
+
+// Frame check sequence: CRC-32 over the whole frame, carried in the tailroom
+class FcsStage implements LinkStage {
+    public static final int TRAILER_LENGTH = 4;
+
+    private CRC32 crc = new CRC32();
+    private long errors;
+
+    public String getName() { return "FCS"; }
+    public long getErrors() { return errors; }
+
+    public int transmit(LinkPipeline link, PacketBuffer frame) {
+        int checksum = checksum(frame, frame.end());
+        frame.putInt(frame.append(TRAILER_LENGTH), checksum);
+        return PASS;
+    }
+
+    public int receive(LinkPipeline link, PacketBuffer frame) {
+        int trailer = frame.end() - TRAILER_LENGTH;
+        if (trailer < frame.start() || frame.getInt(trailer) != checksum(frame, trailer)) {
+            errors++;
+            return DROP;
+        }
+        frame.trim(TRAILER_LENGTH);
+        return PASS;
+    }
+
+    private int checksum(PacketBuffer frame, int end) {
+        crc.reset();
+        crc.update(frame.array(), frame.start(), end - frame.start());
+        return (int) crc.getValue();
+    }
+}
+
+// Go-Back-N ARQ with a 16-bit sequence number in front of the frame; a window of 1 is
+// stop-and-wait. The sender stalls when the window cannot cover the round trip, and a
+// lost frame costs the timeout plus resending the rest of the window.
+class GoBackNStage implements LinkStage {
+    public static final int HEADER_LENGTH = 2;
+
+    private int window;
+    private long timeout;
+    private int nextSequence;
+    private int expectedSequence;
+    private boolean resend;
+    private long retransmissions;
+    private String name;
+
+    public GoBackNStage(int window, long timeout) {
+        this.window = window;
+        this.timeout = timeout;
+        this.name = window == 1 ? "Stop-and-Wait" : "Go-Back-" + window;
+    }
+
+    public String getName() { return name; }
+    public long getRetransmissions() { return retransmissions; }
+
+    public int transmit(LinkPipeline link, PacketBuffer frame) {
+        int sequence = resend ? nextSequence - 1 : nextSequence++;
+        resend = false;
+        frame.putShort(frame.prepend(HEADER_LENGTH), sequence);
+        long transmissionTime = link.getTransmissionTime(frame.length());
+        long roundTrip = transmissionTime + 2 * link.getPropagationDelay();
+        link.addDelay(Math.max(0, roundTrip / window - transmissionTime));
+        return PASS;
+    }
+
+    public int receive(LinkPipeline link, PacketBuffer frame) {
+        int sequence = frame.getShort(frame.pull(HEADER_LENGTH));
+        if (sequence != (expectedSequence & 0xFFFF)) {
+            return DROP; // duplicate of a frame already delivered
+        }
+        expectedSequence++;
+        return PASS;
+    }
+
+    public int lost(LinkPipeline link, PacketBuffer frame) {
+        int resent = window - 1;
+        retransmissions += 1 + resent;
+        link.addDelay(timeout + resent * link.getTransmissionTime(frame.length()));
+        resend = true;
+        return RETRANSMIT;
+    }
+}
+
+// One direction of a cable with a chain of link stages at its ends. The sending device
+// connects to the pipeline as its link, and frames come out at the far device. Every
+// stage works on the same buffer, so passing a frame along allocates nothing.
+class LinkPipeline extends Device {
+    private static final int MAX_ATTEMPTS = 64;
+
+    private LinkStage[] stages;
+    private Device far;
+    private long bitsPerSecond = 1_000_000_000L;
+    private long propagationDelay = 5_000L;
+    private int lossProbability; // per frame, in 1/10000
+    private int corruptionProbability; // per frame, in 1/10000
+    private Random random = new Random(1);
+    private boolean timing = true;
+
+    // Buffer bounds before each stage transmitted, restored when a stage asks to retransmit
+    private int[] starts;
+    private int[] ends;
+
+    // Per-stage cost: CPU time spent in the stage and simulated time it added
+    private long[] stageNanos;
+    private long[] stageDelay;
+    private int current;
+    private long wireDelay;
+
+    private long frames;
+    private long delivered;
+    private long dropped;
+    private long backoffs; // sends repeated by a transmitting stage, such as a CSMA/CD collision
+    private long resends; // sends repeated by a reliable stage after a loss
+    private long corrupted; // delivered with a flipped bit no stage caught
+    private long bytesDelivered;
+
+    public LinkPipeline(LinkStage... stages) {
+        this.stages = stages;
+        this.starts = new int[stages.length];
+        this.ends = new int[stages.length];
+        this.stageNanos = new long[stages.length];
+        this.stageDelay = new long[stages.length];
+    }
+
+    public void connect(Device far) {
+        this.far = far;
+    }
+
+    public void setLink(long bitsPerSecond, long propagationDelay) {
+        this.bitsPerSecond = bitsPerSecond;
+        this.propagationDelay = propagationDelay;
+    }
+
+    public void setImpairments(int lossProbability, int corruptionProbability, long seed) {
+        setImpairments(lossProbability, corruptionProbability);
+        this.random = new Random(seed);
+    }
+
+    // Change the probabilities and keep drawing from the same generator
+    public void setImpairments(int lossProbability, int corruptionProbability) {
+        this.lossProbability = lossProbability;
+        this.corruptionProbability = corruptionProbability;
+    }
+
+    public int getLossProbability() { return lossProbability; }
+    public int getCorruptionProbability() { return corruptionProbability; }
+
+    public void setTiming(boolean timing) { this.timing = timing; }
+    public long getPropagationDelay() { return propagationDelay; }
+    public long getFrames() { return frames; }
+    public long getDelivered() { return delivered; }
+    public long getDropped() { return dropped; }
+    public long getBackoffs() { return backoffs; }
+    public long getResends() { return resends; }
+    public long getCorrupted() { return corrupted; }
+
+    public long getTransmissionTime(int length) {
+        return length * 8_000_000_000L / bitsPerSecond;
+    }
+
+    // Simulated time added by the stage currently running
+    public void addDelay(long nanos) {
+        stageDelay[current] += nanos;
+    }
+
+    public long getSimulatedTime() {
+        long total = wireDelay;
+        for (long delay : stageDelay) {
+            total += delay;
+        }
+        return total;
+    }
+
+    public void receiveFrame(PacketBuffer frame) {
+        frames++;
+        int from = stages.length - 1;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            int verdict = LinkStage.PASS;
+            int stage = from;
+            for (; stage >= 0 && verdict == LinkStage.PASS; stage--) {
+                starts[stage] = frame.start();
+                ends[stage] = frame.end();
+                verdict = run(stage, frame, 0);
+            }
+            if (verdict == LinkStage.RETRANSMIT) {
+                backoffs++;
+                from = restore(frame, stage + 1, attempt);
+                continue;
+            }
+            if (verdict == LinkStage.DROP) {
+                break;
+            }
+
+            wireDelay += getTransmissionTime(frame.length()); // propagation overlaps unless ARQ waits for it
+            if (random.nextInt(10_000) >= lossProbability) {
+                int flipped = -1;
+                if (random.nextInt(10_000) < corruptionProbability) {
+                    flipped = frame.start() + random.nextInt(frame.length());
+                    frame.array()[flipped] ^= 1;
+                }
+                for (stage = 0; stage < stages.length && verdict == LinkStage.PASS; stage++) {
+                    verdict = run(stage, frame, 1);
+                }
+                if (flipped >= 0) {
+                    if (verdict != LinkStage.PASS) {
+                        frame.array()[flipped] ^= 1; // the sender still holds the intact copy
+                    } else {
+                        corrupted++;
+                    }
+                }
+                if (verdict == LinkStage.PASS) {
+                    delivered++;
+                    bytesDelivered += frame.length();
+                    if (far != null) {
+                        far.receiveFrame(frame);
+                    }
+                    return;
+                }
+            }
+
+            // Lost on the wire or rejected by a receiving stage: the highest reliable stage resends
+            verdict = LinkStage.DROP;
+            for (stage = stages.length - 1; stage >= 0 && verdict == LinkStage.DROP; stage--) {
+                verdict = run(stage, frame, 2);
+            }
+            if (verdict != LinkStage.RETRANSMIT) {
+                break;
+            }
+            resends++;
+            from = restore(frame, stage + 1, attempt);
+        }
+        dropped++;
+        Telemetry.dropped("link pipeline", Telemetry.LINK_ERRORS);
+    }
+
+    public void display() {
+        System.out.println("Link pipeline: " + frames + " frames, " + delivered + " delivered, " + dropped
+                + " dropped, " + corrupted + " delivered corrupted, " + backoffs + " backoffs, " + resends + " resends");
+        long simulated = getSimulatedTime();
+        System.out.printf("\t\t %-14s %12s %16s%n", "Stage", "CPU ns/frame", "sim ns/frame");
+        for (int stage = stages.length - 1; stage >= 0; stage--) {
+            System.out.printf("\t\t %-14s %12.1f %16.1f%n", stages[stage].getName(),
+                    stageNanos[stage] / (double) frames, stageDelay[stage] / (double) frames);
+        }
+        System.out.printf("\t\t %-14s %12s %16.1f%n", "wire", "-", wireDelay / (double) frames);
+        System.out.printf("\t\t Goodput: %.1f Mb/s over %.3f s simulated%n",
+                bytesDelivered * 8e3 / simulated, simulated / 1e9);
+    }
+
+    // Run one stage in one direction: 0 transmit, 1 receive, 2 lost
+    private int run(int stage, PacketBuffer frame, int direction) {
+        current = stage;
+        long start = timing ? System.nanoTime() : 0;
+        LinkStage s = stages[stage];
+        int verdict = direction == 0 ? s.transmit(this, frame)
+                : direction == 1 ? s.receive(this, frame) : s.lost(this, frame);
+        if (timing) {
+            stageNanos[stage] += System.nanoTime() - start;
+        }
+        return verdict;
+    }
+
+    private int restore(PacketBuffer frame, int stage, int attempt) {
+        frame.setStart(starts[stage]);
+        frame.setEnd(ends[stage]);
+        Telemetry.retransmitted(stages[stage].getName(), attempt + 1);
+        return stage;
+    }
+}
+
+// Main class to compare protocol combinations on one link and find the limiting stage
+public class LinkLayer {
+    public static void main(String[] args) {
+        int frameCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int frameSize = args.length > 1 ? Integer.parseInt(args[1]) : 1500;
+
+        run("CSMA/CD + FCS + Stop-and-Wait", frameCount, frameSize, () -> new LinkStage[] {
+                new CsmaCdStage(10, 512, 1), new FcsStage(), new GoBackNStage(1, 100_000) });
+        run("FCS + Go-Back-8", frameCount, frameSize, () -> new LinkStage[] {
+                new FcsStage(), new GoBackNStage(8, 100_000) });
+        run("CSMA/CD + FCS + Go-Back-32", frameCount, frameSize, () -> new LinkStage[] {
+                new CsmaCdStage(10, 512, 1), new FcsStage(), new GoBackNStage(32, 100_000) });
+        run("FCS only (no recovery)", frameCount, frameSize, () -> new LinkStage[] { new FcsStage() });
+    }
+
+    private static void run(String name, int frameCount, int frameSize, Supplier<LinkStage[]> stages) {
+        EndDevice sender = new EndDevice("Device A");
+        FrameSink receiver = new FrameSink();
+        PacketBuffer frame = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, frameSize + FcsStage.TRAILER_LENGTH);
+        for (int round = 0; round < 2; round++) { // first round warms up the JIT
+            LinkPipeline link = new LinkPipeline(stages.get());
+            link.setLink(1_000_000_000L, 10_000); // 1 Gb/s, 2 km of fibre
+            link.setImpairments(10, 20, 7); // 0.1% loss, 0.2% corruption
+            sender.connect(link);
+            link.connect(receiver);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < frameCount; i++) {
+                frame.clear();
+                frame.append(frameSize - EthernetFrame.HEADER_LENGTH);
+                EthernetFrame.push(frame, receiver.getMacBits(), sender.getMacBits(), EthernetFrame.TYPE_IPV4);
+                sender.transmitFrame(frame);
+            }
+            if (round == 1) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(name + ":");
+                link.display();
+                System.out.printf("\t\t Simulator speed: %.2f M frames/s%n%n", frameCount / seconds / 1e6);
+            }
+        }
+    }
+}
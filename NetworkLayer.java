@@ -3,8 +3,8 @@ import java.util.*;
 // Interface class to represent network interfaces
 class Interface {
     private String name;
-    private String ipAddress;
-    private String subnetMask;
+    private int ipAddress;
+    private int subnetMask;
     private String macAddress;
     private boolean status;
 
@@ -15,55 +15,334 @@ class Interface {
     }
 
     public void configure(String ipAddress, String subnetMask) {
+        configure(IPv4.parse(ipAddress), IPv4.parse(subnetMask));
+    }
+
+    public void configure(int ipAddress, int subnetMask) {
         this.ipAddress = ipAddress;
         this.subnetMask = subnetMask;
         this.status = true; // bring interface up
     }
 
     public String getName() { return name; }
-    public String getIpAddress() { return ipAddress; }
-    public String getSubnetMask() { return subnetMask; }
+    public String getIpAddress() { return IPv4.format(ipAddress); }
+    public String getSubnetMask() { return IPv4.format(subnetMask); }
+    public int getAddress() { return ipAddress; }
+    public int getMask() { return subnetMask; }
+    public int getPrefixLength() { return Integer.bitCount(subnetMask); }
     public String getMacAddress() { return macAddress; }
     public boolean getStatus() { return status; }
     public void setStatus(boolean status) { this.status = status; }
 }
 
+// Conversions between dotted-decimal IPv4 strings and packed 32-bit addresses
+class IPv4 {
+    public static int parse(String address) {
+        int value = 0;
+        int octet = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c == '.') {
+                value = (value << 8) | octet;
+                octet = 0;
+            } else {
+                octet = octet * 10 + (c - '0');
+            }
+        }
+        return (value << 8) | octet;
+    }
+
+    public static String format(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    public static boolean sameSubnet(int address, int other, int mask) {
+        return (address & mask) == (other & mask);
+    }
+
+    public static int mask(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    // Length of a "network/length" prefix; a bare address is a /32
+    public static int prefixLength(String prefix) {
+        int slash = prefix.indexOf('/');
+        return slash < 0 ? 32 : Integer.parseInt(prefix.substring(slash + 1));
+    }
+
+    public static int network(String prefix) {
+        int slash = prefix.indexOf('/');
+        return parse(slash < 0 ? prefix : prefix.substring(0, slash)) & mask(prefixLength(prefix));
+    }
+
+    // True for a dotted-quad address with an optional "/length"; anything else is a name
+    public static boolean isPrefix(String prefix) {
+        int slash = prefix.indexOf('/');
+        int end = slash < 0 ? prefix.length() : slash;
+        int dots = 0;
+        int digits = 0;
+        int octet = 0;
+        for (int i = 0; i < end; i++) {
+            char c = prefix.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || ++dots > 3) {
+                    return false;
+                }
+                digits = 0;
+                octet = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                octet = octet * 10 + (c - '0');
+                digits++;
+                if (octet > 255) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            return false;
+        }
+        if (slash < 0) {
+            return true;
+        }
+        int length = 0;
+        for (int i = slash + 1; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c < '0' || c > '9' || i > slash + 2) {
+                return false;
+            }
+            length = length * 10 + (c - '0');
+        }
+        return prefix.length() > slash + 1 && length <= 32;
+    }
+
+    public static String formatPrefix(int network, int length) {
+        return format(network) + "/" + length;
+    }
+}
+
+// Open-addressing map from (network, prefix length) to a non-negative int. The set of
+// prefix lengths in use is kept as a bit mask, so a longest-prefix match probes
+// only those lengths, longest first.
+class PrefixMap {
+    private int[] networks = new int[16];
+    private byte[] lengths = new byte[16];
+    private int[] values = new int[16]; // value + 1, 0 marks an empty slot
+    private int size;
+    private long lengthsInUse; // bit n set while some prefix of length n is present
+    private int[] lengthCount = new int[33];
+
+    public int size() { return size; }
+
+    public void put(int network, int length, int value) {
+        if ((size + 1) * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        int mask = values.length - 1;
+        int i = slot(network, length) & mask;
+        while (values[i] != 0) {
+            if (networks[i] == network && lengths[i] == length) {
+                values[i] = value + 1;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        networks[i] = network;
+        lengths[i] = (byte) length;
+        values[i] = value + 1;
+        size++;
+        if (lengthCount[length]++ == 0) {
+            lengthsInUse |= 1L << length;
+        }
+    }
+
+    // Value stored for exactly this prefix, or -1
+    public int get(int network, int length) {
+        int mask = values.length - 1;
+        int i = slot(network, length) & mask;
+        while (values[i] != 0) {
+            if (networks[i] == network && lengths[i] == length) {
+                return values[i] - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Value of the longest prefix containing the address, or -1
+    public int longestMatch(int address) {
+        long remaining = lengthsInUse;
+        while (remaining != 0) {
+            int length = 63 - Long.numberOfLeadingZeros(remaining);
+            int value = get(address & IPv4.mask(length), length);
+            if (value >= 0) {
+                return value;
+            }
+            remaining &= ~(1L << length);
+        }
+        return -1;
+    }
+
+    public void remove(int network, int length) {
+        int mask = values.length - 1;
+        int i = slot(network, length) & mask;
+        while (values[i] != 0 && !(networks[i] == network && lengths[i] == length)) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == 0) {
+            return;
+        }
+        values[i] = 0;
+        size--;
+        if (--lengthCount[length] == 0) {
+            lengthsInUse &= ~(1L << length);
+        }
+        // Shift later entries of the probe run back so lookups never stop early
+        for (int j = (i + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+            int home = slot(networks[j], lengths[j]) & mask;
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                networks[i] = networks[j];
+                lengths[i] = lengths[j];
+                values[i] = values[j];
+                values[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private static int slot(int network, int length) {
+        int h = network * 0x9E3779B1 + length * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+
+    private void resize(int capacity) {
+        int[] oldNetworks = networks;
+        byte[] oldLengths = lengths;
+        int[] oldValues = values;
+        networks = new int[capacity];
+        lengths = new byte[capacity];
+        values = new int[capacity];
+        size = 0;
+        lengthsInUse = 0;
+        lengthCount = new int[33];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != 0) {
+                put(oldNetworks[i], oldLengths[i], oldValues[i] - 1);
+            }
+        }
+    }
+}
+
+// Simplified IPv4 header: TTL, protocol, total length, source, destination
+class IPv4Header {
+    public static final int HEADER_LENGTH = 12;
+    public static final int DEFAULT_TTL = 64;
+    public static final int PROTOCOL_TCP = 6;
+
+    public static void push(PacketBuffer buffer, int source, int destination, int protocol) {
+        int length = buffer.length() + HEADER_LENGTH;
+        int offset = buffer.prepend(HEADER_LENGTH);
+        byte[] data = buffer.array();
+        data[offset] = (byte) DEFAULT_TTL;
+        data[offset + 1] = (byte) protocol;
+        buffer.putShort(offset + 2, length);
+        buffer.putInt(offset + 4, source);
+        buffer.putInt(offset + 8, destination);
+    }
+
+    public static int ttl(PacketBuffer buffer) {
+        return buffer.array()[buffer.start()] & 0xFF;
+    }
+
+    public static void setTtl(PacketBuffer buffer, int ttl) {
+        buffer.array()[buffer.start()] = (byte) ttl;
+    }
+
+    public static int source(PacketBuffer buffer) {
+        return buffer.getInt(buffer.start() + 4);
+    }
+
+    public static int destination(PacketBuffer buffer) {
+        return buffer.getInt(buffer.start() + 8);
+    }
+}
+
 // ARPTable class to manage ARP entries
 class ARPTable {
-    private Map<String, String> arpTable;
+    private PrefixMap index; // IP address as a /32 -> entry
+    private int[] ipAddresses;
+    private long[] macAddresses;
+    private int size;
+    private int generation; // bumped on every change so cached resolutions can be invalidated
 
     public ARPTable() {
-        arpTable = new HashMap<>();
+        index = new PrefixMap();
+        ipAddresses = new int[16];
+        macAddresses = new long[16];
     }
 
     public void addEntry(String ipAddress, String macAddress) {
-        arpTable.put(ipAddress, macAddress);
+        addEntry(IPv4.parse(ipAddress), Device.macToLong(macAddress));
     }
 
+    public void addEntry(int ipAddress, long macAddress) {
+        int entry = index.get(ipAddress, 32);
+        if (entry < 0) {
+            if (size == ipAddresses.length) {
+                ipAddresses = Arrays.copyOf(ipAddresses, size * 2);
+                macAddresses = Arrays.copyOf(macAddresses, size * 2);
+            }
+            entry = size++;
+            ipAddresses[entry] = ipAddress;
+            index.put(ipAddress, 32, entry);
+        }
+        macAddresses[entry] = macAddress;
+        generation++;
+    }
+
+    public int getGeneration() { return generation; }
+
     public String getMacAddress(String ipAddress) {
-        return arpTable.get(ipAddress);
+        long macAddress = getMacBits(IPv4.parse(ipAddress));
+        return macAddress < 0 ? null : Device.formatMac(macAddress);
+    }
+
+    // Packed MAC address for the IP address, or -1 when there is no entry
+    public long getMacBits(int ipAddress) {
+        int entry = index.get(ipAddress, 32);
+        return entry < 0 ? -1 : macAddresses[entry];
     }
 
     public void displayTable() {
         System.out.println("ARP Table:");
-        arpTable.forEach((ip, mac) -> System.out.println("IP Address: " + ip + " -> MAC Address: " + mac));
+        for (int i = 0; i < size; i++) {
+            System.out.println("IP Address: " + IPv4.format(ipAddresses[i]) + " -> MAC Address: " + Device.formatMac(macAddresses[i]));
+        }
     }
 }
 
 // Packet class to represent network packets
 class Packet {
-    private String sourceIP;
-    private String destinationIP;
+    private int sourceIP;
+    private int destinationIP;
     private String data;
 
     public Packet(String sourceIP, String destinationIP, String data) {
+        this(IPv4.parse(sourceIP), IPv4.parse(destinationIP), data);
+    }
+
+    public Packet(int sourceIP, int destinationIP, String data) {
         this.sourceIP = sourceIP;
         this.destinationIP = destinationIP;
         this.data = data;
     }
 
-    public String getSourceIP() { return sourceIP; }
-    public String getDestinationIP() { return destinationIP; }
+    public String getSourceIP() { return IPv4.format(sourceIP); }
+    public String getDestinationIP() { return IPv4.format(destinationIP); }
+    public int getSourceAddress() { return sourceIP; }
+    public int getDestinationAddress() { return destinationIP; }
     public String getData() { return data; }
 }
 
@@ -71,35 +350,404 @@ class Packet {
 abstract class NetworkDevice {
     private String name;
     private List<Interface> interfaces;
+    private PrefixMap connectedSubnets; // connected subnet -> position in interfaces
 
     public NetworkDevice(String name) {
         this.name = name;
         this.interfaces = new ArrayList<>();
+        this.connectedSubnets = new PrefixMap();
     }
 
     public String getName() { return name; }
     public List<Interface> getInterfaces() { return interfaces; }
-    public void addInterface(Interface iface) { interfaces.add(iface); }
+
+    // Interfaces must be configured before they are added to be found by subnet
+    public void addInterface(Interface iface) {
+        interfaces.add(iface);
+        if (iface.getAddress() != 0) {
+            connectedSubnets.put(iface.getAddress() & iface.getMask(), iface.getPrefixLength(), interfaces.size() - 1);
+        }
+    }
+
+    // Position of the interface whose subnet contains the address, or -1
+    public int findInterfaceIndex(int address) {
+        return connectedSubnets.longestMatch(address);
+    }
+
     public abstract void configure();
 }
 
+// Router interface attached to the link layer, so frames can reach the router
+class RouterPort extends Device {
+    private Router router;
+    private Interface iface;
+    private Device link; // switch or hub on the other end of the cable
+    private int number; // position in the router's port list
+    private int address;
+    private int mask;
+    private PacketBuffer[] accepted = new PacketBuffer[32]; // frames of a burst addressed to this port
+
+    public RouterPort(Router router, Interface iface, int number) {
+        super(macToLong(iface.getMacAddress()));
+        this.router = router;
+        this.iface = iface;
+        this.number = number;
+        this.address = iface.getAddress();
+        this.mask = iface.getMask();
+    }
+
+    public Router getRouter() { return router; }
+    public int getNumber() { return number; }
+    public Interface getInterface() { return iface; }
+    public int getAddress() { return address; }
+    public int getMask() { return mask; }
+
+    public void connect(Device link) {
+        this.link = link;
+    }
+
+    public void transmit(PacketBuffer frame) {
+        if (link != null) {
+            Telemetry.frameTransmitted(macBits, frame.length());
+            link.receiveFrame(frame);
+        }
+    }
+
+    public void transmitBatch(PacketBuffer[] frames, int count) {
+        if (link != null) {
+            for (int i = 0; i < count; i++) {
+                Telemetry.frameTransmitted(macBits, frames[i].length());
+            }
+            link.receiveFrames(frames, count);
+        }
+    }
+
+    public void receiveFrame(PacketBuffer frame) {
+        if (EthernetFrame.destination(frame) != macBits) {
+            return;
+        }
+        if (!iface.getStatus()) {
+            Telemetry.dropped(router.getName(), Telemetry.DEVICE_DOWN);
+            return;
+        }
+        Telemetry.frameReceived(macBits, frame.length());
+        router.forwardFrame(frame);
+    }
+
+    // Keep a burst together on its way into the router, so every hop forwards in batches
+    public void receiveFrames(PacketBuffer[] frames, int count) {
+        if (router.isForwardingBurst()) {
+            super.receiveFrames(frames, count); // the router is mid-burst; its scratch space is in use
+            return;
+        }
+        if (accepted.length < count) {
+            accepted = new PacketBuffer[count];
+        }
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            PacketBuffer frame = frames[i];
+            if (EthernetFrame.destination(frame) != macBits) {
+                continue;
+            }
+            if (!iface.getStatus()) {
+                Telemetry.dropped(router.getName(), Telemetry.DEVICE_DOWN);
+                continue;
+            }
+            Telemetry.frameReceived(macBits, frame.length());
+            accepted[n++] = frame;
+        }
+        if (n > 0) {
+            router.forwardBurst(accepted, n);
+        }
+    }
+
+    public void display() {
+        System.out.println("Router port: " + router.getName() + " " + iface.getName());
+        System.out.println("\t\t MAC ADDRESS: " + getMacAddress());
+    }
+}
+
+// Equal-cost next hops for one destination. Flows are spread over a resilient
+// bucket table, so a failed next hop only moves the flows that were using it.
+class NextHopGroup {
+    public static final int BUCKETS = 256;
+
+    private int[] addresses = new int[4];
+    private boolean[] up = new boolean[4];
+    private int[] bucketCount = new int[4];
+    private long[] packets = new long[4];
+    private long[] bytes = new long[4];
+    private int size;
+    private int[] buckets = new int[BUCKETS];
+
+    public int size() { return size; }
+    public void add(int nextHop) {
+        if (indexOf(nextHop) >= 0) {
+            return;
+        }
+        if (size == addresses.length) {
+            int capacity = size * 2;
+            addresses = Arrays.copyOf(addresses, capacity);
+            up = Arrays.copyOf(up, capacity);
+            bucketCount = Arrays.copyOf(bucketCount, capacity);
+            packets = Arrays.copyOf(packets, capacity);
+            bytes = Arrays.copyOf(bytes, capacity);
+        }
+        addresses[size] = nextHop;
+        up[size] = true;
+        if (size == 0) {
+            bucketCount[0] = BUCKETS;
+        }
+        size++;
+        rebalance(size - 1);
+    }
+
+    // Take the member out of service and hand its buckets to the least loaded live members
+    public void setStatus(int nextHop, boolean status) {
+        int member = indexOf(nextHop);
+        if (member < 0 || up[member] == status) {
+            return;
+        }
+        up[member] = status;
+        if (status) {
+            rebalance(member);
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            if (buckets[i] == member) {
+                int target = leastLoaded();
+                if (target < 0) {
+                    return;
+                }
+                buckets[i] = target;
+                bucketCount[member]--;
+                bucketCount[target]++;
+            }
+        }
+    }
+
+    // Member chosen for a flow hash, or -1 when every next hop is down
+    public int select(int flowHash) {
+        int member = buckets[flowHash & (BUCKETS - 1)];
+        return up[member] ? member : -1;
+    }
+
+    public int getAddress(int member) { return addresses[member]; }
+
+    public void record(int member, int length) {
+        packets[member]++;
+        bytes[member] += length;
+    }
+
+    public void displayStatistics(String destination) {
+        for (int i = 0; i < size; i++) {
+            System.out.println("Destination: " + destination + " via " + IPv4.format(addresses[i]) + (up[i] ? "" : " (down)")
+                    + " -> buckets " + bucketCount[i] + ", packets " + packets[i] + ", bytes " + bytes[i]);
+        }
+    }
+
+    private int indexOf(int nextHop) {
+        for (int i = 0; i < size; i++) {
+            if (addresses[i] == nextHop) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int leastLoaded() {
+        int best = -1;
+        for (int i = 0; i < size; i++) {
+            if (up[i] && (best < 0 || bucketCount[i] < bucketCount[best])) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // Move buckets to a new or restored member only from members above their fair share
+    private void rebalance(int member) {
+        int live = 0;
+        for (int i = 0; i < size; i++) {
+            if (up[i]) {
+                live++;
+            }
+        }
+        int target = BUCKETS / live;
+        for (int i = 0; i < BUCKETS && bucketCount[member] < target; i++) {
+            int owner = buckets[i];
+            if (owner != member && (!up[owner] || bucketCount[owner] > target)) {
+                buckets[i] = member;
+                bucketCount[owner]--;
+                bucketCount[member]++;
+            }
+        }
+    }
+}
+
+// Direct-mapped cache of forwarding decisions keyed by destination address, or by
+// destination and flow hash. Entries carry the table generation they were resolved
+// under and are ignored once a route or ARP change moves the generation on.
+class FlowCache {
+    private int mask;
+    private boolean perFlow;
+    private int[] destinations;
+    private int[] flowHashes;
+    private long[] generations;
+    private RouterPort[] egress;
+    private long[] macAddresses;
+    private NextHopGroup[] groups;
+    private int[] members;
+    private long hits;
+    private long misses;
+
+    public FlowCache(int entries, boolean perFlow) {
+        int size = Integer.highestOneBit(Math.max(entries, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.perFlow = perFlow;
+        this.destinations = new int[size];
+        this.flowHashes = new int[size];
+        this.generations = new long[size];
+        Arrays.fill(generations, -1);
+        this.egress = new RouterPort[size];
+        this.macAddresses = new long[size];
+        this.groups = new NextHopGroup[size];
+        this.members = new int[size];
+    }
+
+    public boolean isPerFlow() { return perFlow; }
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+
+    private int slot(int destination, int flowHash) {
+        int h = (destination ^ flowHash) * 0x9E3779B1;
+        return (h ^ (h >>> 15)) & mask;
+    }
+
+    // Slot holding a valid entry for the key, or -1 on a miss
+    public int find(int destination, int flowHash, long generation) {
+        int slot = slot(destination, flowHash);
+        if (generations[slot] == generation && destinations[slot] == destination && flowHashes[slot] == flowHash
+                && egress[slot].getInterface().getStatus()) {
+            hits++;
+            return slot;
+        }
+        misses++;
+        return -1;
+    }
+
+    public void store(int destination, int flowHash, long generation, RouterPort port, long macAddress,
+            NextHopGroup group, int member) {
+        int slot = slot(destination, flowHash);
+        destinations[slot] = destination;
+        flowHashes[slot] = flowHash;
+        generations[slot] = generation;
+        egress[slot] = port;
+        macAddresses[slot] = macAddress;
+        groups[slot] = group;
+        members[slot] = member;
+    }
+
+    public RouterPort getEgress(int slot) { return egress[slot]; }
+    public long getMacAddress(int slot) { return macAddresses[slot]; }
+    public NextHopGroup getGroup(int slot) { return groups[slot]; }
+    public int getMember(int slot) { return members[slot]; }
+
+    public void displayStatistics() {
+        long lookups = hits + misses;
+        System.out.printf("Flow cache: %d entries, %d hits, %d misses (%.1f%% hit rate)%n", mask + 1, hits, misses,
+                lookups == 0 ? 0 : 100.0 * hits / lookups);
+    }
+}
+
 // Router class extending NetworkDevice
 class Router extends NetworkDevice {
-    private Map<String, String> routingTable;
+    private PrefixMap routingTable; // destination prefix -> route
+    private int[] routeNetwork;
+    private int[] routeLength;
+    private int[] routeNextHop;
+    private NextHopGroup[] routeGroup; // set when the route has more than one equal-cost next hop
+    private int routeCount;
+    private int[] freeRoutes; // slots released by removeRoute, reused before the arrays grow
+    private int freeRouteCount;
+    private Map<String, List<String>> namedRoutes; // OSPF routes to neighbours known only by name, every equal-cost next hop
     private ARPTable arpTable;
     private Map<String, Integer> neighbors; // Neighbor router name and link cost
+    private Map<String, Integer> neighborInterfaces; // Neighbor router name and the interface facing it
+    private boolean ospfEnabled;
+    private List<RouterPort> ports;
+    private RouterPort[] portByInterface;
+    private int routeGeneration; // bumped whenever routes, next hop status or ports change
+    private static long fabricGeneration; // bumped with every router's routeGeneration
+    private FlowCache flowCache;
+    private RipDomain ripDomain;
+    private boolean crashed;
+
+    // Scratch space reused by forwardBurst; table entries are valid only for the burst that stamped them
+    private static final int BURST_TABLE_BITS = 8;
+    private int burstEpoch;
+    private int[] burstStamp = new int[1 << BURST_TABLE_BITS];
+    private int[] burstDestination = new int[1 << BURST_TABLE_BITS];
+    private RouterPort[] burstEgress = new RouterPort[1 << BURST_TABLE_BITS];
+    private long[] burstMac = new long[1 << BURST_TABLE_BITS];
+    private NextHopGroup[] burstGroup = new NextHopGroup[1 << BURST_TABLE_BITS];
+    private boolean[] burstRouted = new boolean[1 << BURST_TABLE_BITS]; // a route exists, though its next hop may be down
+    private boolean forwardingBurst;
+    private int[] burstHopStamp = new int[1 << BURST_TABLE_BITS];
+    private int[] burstHopAddress = new int[1 << BURST_TABLE_BITS];
+    private RouterPort[] burstHopEgress = new RouterPort[1 << BURST_TABLE_BITS];
+    private long[] burstHopMac = new long[1 << BURST_TABLE_BITS];
+    private PacketBuffer[][] portBatches = new PacketBuffer[0][];
+    private int[] portBatchCount = new int[0];
+    private int[] usedPorts = new int[0];
 
     public Router(String name) {
         super(name);
-        this.routingTable = new HashMap<>();
+        this.routingTable = new PrefixMap();
+        this.routeNetwork = new int[16];
+        this.routeLength = new int[16];
+        this.routeNextHop = new int[16];
+        this.routeGroup = new NextHopGroup[16];
+        this.freeRoutes = new int[16];
+        this.namedRoutes = new LinkedHashMap<>();
         this.arpTable = new ARPTable();
         this.neighbors = new HashMap<>();
+        this.neighborInterfaces = new HashMap<>();
+        this.ports = new ArrayList<>();
+        this.portByInterface = new RouterPort[4];
+    }
+
+    public List<RouterPort> getPorts() { return ports; }
+
+    // Attach a configured interface to the link layer
+    public RouterPort addPort(Interface iface) {
+        addInterface(iface);
+        RouterPort port = new RouterPort(this, iface, ports.size());
+        ports.add(port);
+        int index = getInterfaces().size() - 1;
+        if (index >= portByInterface.length) {
+            portByInterface = Arrays.copyOf(portByInterface, Math.max(index + 1, portByInterface.length * 2));
+        }
+        portByInterface[index] = port;
+        routesChanged();
+        return port;
     }
 
     public void addNeighbor(String neighborName, int cost) {
         neighbors.put(neighborName, cost);
     }
 
+    // A neighbour reached through one of our interfaces; OSPF skips it while the interface is down
+    public void addNeighbor(String neighborName, int cost, int interfaceIndex) {
+        neighbors.put(neighborName, cost);
+        neighborInterfaces.put(neighborName, interfaceIndex);
+    }
+
+    private boolean isNeighborUp(String neighborName) {
+        Integer index = neighborInterfaces.get(neighborName);
+        return index == null || getInterfaces().get(index).getStatus();
+    }
+
     public void addArpEntry(String ipAddress, String macAddress) {
         arpTable.addEntry(ipAddress, macAddress);
     }
@@ -113,18 +761,165 @@ class Router extends NetworkDevice {
     }
 
     public void addRoute(String destination, String nextHop) {
-        routingTable.put(destination, nextHop);
+        if (!IPv4.isPrefix(destination)) {
+            namedRoutes.put(destination, new ArrayList<>(List.of(nextHop)));
+            return;
+        }
+        addRoute(IPv4.network(destination), IPv4.prefixLength(destination), IPv4.parse(nextHop));
+    }
+
+    public void addRoute(int network, int length, int nextHop) {
+        int route = routingTable.get(network, length);
+        if (route < 0) {
+            route = newRoute(network, length);
+        }
+        routeNextHop[route] = nextHop;
+        routeGroup[route] = null;
+        routesChanged();
+    }
+
+    // Add another next hop with the same cost as the existing route to the destination
+    public void addEqualCostRoute(String destination, String nextHop) {
+        if (!IPv4.isPrefix(destination)) {
+            List<String> nextHops = namedRoutes.computeIfAbsent(destination, name -> new ArrayList<>());
+            if (!nextHops.contains(nextHop)) {
+                nextHops.add(nextHop);
+            }
+            return;
+        }
+        addEqualCostRoute(IPv4.network(destination), IPv4.prefixLength(destination), IPv4.parse(nextHop));
+    }
+
+    public void addEqualCostRoute(int network, int length, int nextHop) {
+        int route = routingTable.get(network, length);
+        if (route < 0) {
+            addRoute(network, length, nextHop);
+            return;
+        }
+        NextHopGroup group = routeGroup[route];
+        if (group == null) {
+            if (routeNextHop[route] == nextHop) {
+                return;
+            }
+            group = new NextHopGroup();
+            group.add(routeNextHop[route]);
+            routeGroup[route] = group;
+        }
+        group.add(nextHop);
+        routesChanged();
+    }
+
+    public void removeRoute(int network, int length) {
+        int route = routingTable.get(network, length);
+        if (route >= 0) {
+            routingTable.remove(network, length);
+            routeLength[route] = -1;
+            routeGroup[route] = null;
+            if (freeRouteCount == freeRoutes.length) {
+                freeRoutes = Arrays.copyOf(freeRoutes, freeRouteCount * 2);
+            }
+            freeRoutes[freeRouteCount++] = route;
+            routesChanged();
+        }
+    }
+
+    // Route slots in use or free; stays at the peak number of live routes under add/remove churn
+    public int getRouteSlots() { return routeCount; }
+
+    // Mark a next hop up or down in every equal-cost group that uses it
+    public void setNextHopStatus(String nextHop, boolean status) {
+        int address = IPv4.parse(nextHop);
+        for (int route = 0; route < routeCount; route++) {
+            if (routeGroup[route] != null) {
+                routeGroup[route].setStatus(address, status);
+            }
+        }
+        routesChanged();
+    }
+
+    private int newRoute(int network, int length) {
+        if (freeRouteCount > 0) {
+            int route = freeRoutes[--freeRouteCount];
+            routeNetwork[route] = network;
+            routeLength[route] = length;
+            routingTable.put(network, length, route);
+            return route;
+        }
+        if (routeCount == routeNetwork.length) {
+            int capacity = routeCount * 2;
+            routeNetwork = Arrays.copyOf(routeNetwork, capacity);
+            routeLength = Arrays.copyOf(routeLength, capacity);
+            routeNextHop = Arrays.copyOf(routeNextHop, capacity);
+            routeGroup = Arrays.copyOf(routeGroup, capacity);
+        }
+        int route = routeCount++;
+        routeNetwork[route] = network;
+        routeLength[route] = length;
+        routingTable.put(network, length, route);
+        return route;
+    }
+
+    // Formats the table only here, at the display edge
+    private void printRoutes(String prefix, String separator) {
+        for (int route = 0; route < routeCount; route++) {
+            if (routeLength[route] < 0) {
+                continue;
+            }
+            String destination = IPv4.formatPrefix(routeNetwork[route], routeLength[route]);
+            NextHopGroup group = routeGroup[route];
+            if (group == null) {
+                System.out.println(prefix + destination + separator + IPv4.format(routeNextHop[route]));
+                continue;
+            }
+            for (int i = 0; i < group.size(); i++) {
+                System.out.println(prefix + destination + separator + IPv4.format(group.getAddress(i)) + " (equal cost)");
+            }
+        }
+        namedRoutes.forEach((destination, nextHops) -> nextHops.forEach(nextHop -> System.out.println(
+                prefix + destination + separator + nextHop + (nextHops.size() > 1 ? " (equal cost)" : ""))));
     }
 
     public void showRoutingTable() {
         System.out.println("Routing Table:");
-        routingTable.forEach((destination, nextHop) -> System.out.println("Destination: " + destination + " -> Next Hop: " + nextHop));
+        printRoutes("Destination: ", " -> Next Hop: ");
+    }
+
+    // Cache resolved egress ports and next hop MACs; per-flow entries are needed to
+    // cache destinations reached over equal-cost routes
+    public void enableFlowCache(int entries, boolean perFlow) {
+        flowCache = new FlowCache(entries, perFlow);
+    }
+
+    public FlowCache getFlowCache() { return flowCache; }
+    public boolean isForwardingBurst() { return forwardingBurst; }
+    public int getRouteGeneration() { return routeGeneration; }
+    public static long getFabricGeneration() { return fabricGeneration; }
+
+    private void routesChanged() {
+        routeGeneration++;
+        fabricGeneration++;
+    }
+
+    private long tableGeneration() {
+        return ((long) routeGeneration << 32) | (arpTable.getGeneration() & 0xFFFFFFFFL);
+    }
+
+    public void showMultipathStatistics() {
+        System.out.println("Multipath statistics for " + getName() + ":");
+        for (int route = 0; route < routeCount; route++) {
+            if (routeLength[route] >= 0 && routeGroup[route] != null) {
+                routeGroup[route].displayStatistics(IPv4.formatPrefix(routeNetwork[route], routeLength[route]));
+            }
+        }
     }
 
     private void computeShortestPaths() {
         System.out.println("Computing shortest paths for OSPF...");
+        SpfEvent spf = Telemetry.beginSpf();
+        routesChanged();
+        namedRoutes.clear();
         Map<String, Integer> distances = new HashMap<>();
-        Map<String, String> previous = new HashMap<>();
+        Map<String, List<String>> previous = new HashMap<>(); // all equal-cost predecessors
         PriorityQueue<String> pq = new PriorityQueue<>(Comparator.comparingInt(distances::get));
 
         neighbors.keySet().forEach(neighbor -> {
@@ -138,34 +933,89 @@ class Router extends NetworkDevice {
             String current = pq.poll();
             for (Map.Entry<String, Integer> neighborEntry : neighbors.entrySet()) {
                 String neighbor = neighborEntry.getKey();
+                if (!isNeighborUp(neighbor)) {
+                    continue;
+                }
                 int cost = neighborEntry.getValue();
                 int altDist = distances.get(current) + cost;
                 if (altDist < distances.get(neighbor)) {
                     distances.put(neighbor, altDist);
-                    previous.put(neighbor, current);
+                    previous.put(neighbor, new ArrayList<>(List.of(current)));
                     pq.add(neighbor);
+                } else if (altDist == distances.get(neighbor) && !previous.get(neighbor).contains(current)) {
+                    previous.get(neighbor).add(current);
                 }
             }
         }
 
         distances.keySet().forEach(destination -> {
             if (previous.get(destination) != null) {
-                routingTable.put(destination, previous.get(destination));
+                addRoute(destination, previous.get(destination).get(0));
+                previous.get(destination).forEach(nextHop -> addEqualCostRoute(destination, nextHop));
             }
         });
+        if (spf != null) {
+            Telemetry.endSpf(spf, getName(), distances.size());
+        }
     }
 
     private void populateRoutingTable() {
         System.out.println("Populating OSPF routing table...");
         computeShortestPaths();
-        routingTable.forEach((destination, nextHop) -> System.out.println("Route: " + destination + " via " + nextHop));
+        printRoutes("Route: ", " via ");
     }
 
     public void configureOSPF(String area, String network) {
+        ospfEnabled = true;
         populateRoutingTable();
         displayOSPFConfiguration();
     }
 
+    // Exchange distance-vector updates with routers sharing a subnet in the domain
+    public RipProcess configureRIP(RipDomain domain) {
+        this.ripDomain = domain;
+        return domain.attach(this);
+    }
+
+    public boolean isCrashed() { return crashed; }
+
+    // Shut an interface down or bring it back up. Its subnet stops being reachable,
+    // equal-cost next hops behind it are skipped and the routing protocol is told.
+    public void setInterfaceStatus(int index, boolean status) {
+        Interface iface = getInterfaces().get(index);
+        if (iface.getStatus() == status) {
+            return;
+        }
+        iface.setStatus(status);
+        for (int route = 0; route < routeCount; route++) {
+            NextHopGroup group = routeGroup[route];
+            if (routeLength[route] < 0 || group == null) {
+                continue;
+            }
+            for (int i = 0; i < group.size(); i++) {
+                if (IPv4.sameSubnet(group.getAddress(i), iface.getAddress(), iface.getMask())) {
+                    group.setStatus(group.getAddress(i), status);
+                }
+            }
+        }
+        routesChanged();
+        if (ripDomain != null) {
+            ripDomain.interfaceChanged(this, index, status);
+        }
+        if (ospfEnabled) {
+            computeShortestPaths();
+        }
+    }
+
+    // A crashed router drops every frame and stops talking to its neighbours
+    public void setCrashed(boolean crashed) {
+        this.crashed = crashed;
+        routesChanged();
+        if (ripDomain != null) {
+            ripDomain.routerCrashed(this, crashed);
+        }
+    }
+
     private void displayOSPFConfiguration() {
         System.out.println("OSPF configuration completed.");
     }
@@ -175,18 +1025,312 @@ class Router extends NetworkDevice {
         // Configuration logic for the router
     }
 
+    // Forward a frame in place: the Ethernet header is replaced and the IP header
+    // rewritten without copying the packet
+    public void forwardFrame(PacketBuffer frame) {
+        if (crashed) {
+            Telemetry.dropped(getName(), Telemetry.DEVICE_DOWN);
+            return;
+        }
+        frame.pull(EthernetFrame.HEADER_LENGTH);
+        int ttl = IPv4Header.ttl(frame);
+        if (ttl <= 1) {
+            Telemetry.dropped(getName(), Telemetry.TTL_EXPIRED);
+            return;
+        }
+        IPv4Header.setTtl(frame, ttl - 1);
+
+        int destination = IPv4Header.destination(frame);
+        int length = frame.length();
+        int cacheHash = 0;
+        long generation = 0;
+        if (flowCache != null) {
+            cacheHash = flowCache.isPerFlow() ? flowHash(frame) : 0;
+            generation = tableGeneration();
+            int slot = flowCache.find(destination, cacheHash, generation);
+            if (slot >= 0) {
+                RouterPort egress = flowCache.getEgress(slot);
+                EthernetFrame.push(frame, flowCache.getMacAddress(slot), egress.getMacBits(), EthernetFrame.TYPE_IPV4);
+                egress.transmit(frame);
+                if (flowCache.getGroup(slot) != null) {
+                    flowCache.getGroup(slot).record(flowCache.getMember(slot), length);
+                }
+                return;
+            }
+        }
+
+        int nextHop = destination;
+        NextHopGroup group = null;
+        int member = -1;
+        RouterPort egress = egressPort(destination);
+        if (egress == null) {
+            int route = lookupRoute(destination);
+            if (route < 0) {
+                Telemetry.dropped(getName(), Telemetry.NO_ROUTE);
+                return;
+            }
+            group = routeGroup[route];
+            if (group == null) {
+                nextHop = routeNextHop[route];
+            } else {
+                member = group.select(flowHash(frame));
+                if (member < 0) {
+                    Telemetry.dropped(getName(), Telemetry.NEXT_HOP_DOWN);
+                    return;
+                }
+                nextHop = group.getAddress(member);
+            }
+            egress = egressPort(nextHop);
+            if (egress == null) {
+                Telemetry.dropped(getName(), Telemetry.NEXT_HOP_DOWN);
+                return;
+            }
+        }
+        long macAddress = lookupMac(nextHop);
+        if (macAddress < 0) {
+            Telemetry.dropped(getName(), Telemetry.NO_ARP_ENTRY);
+            return;
+        }
+        if (flowCache != null && (group == null || flowCache.isPerFlow())) {
+            flowCache.store(destination, cacheHash, generation, egress, macAddress, group, member);
+        }
+        EthernetFrame.push(frame, macAddress, egress.getMacBits(), EthernetFrame.TYPE_IPV4);
+        egress.transmit(frame);
+        if (group != null) {
+            group.record(member, length); // only frames that actually left count toward the member
+        }
+    }
+
+    // Forward a burst of frames. Frames are resolved through the flow cache when it is
+    // enabled; otherwise destinations and equal-cost next hops seen earlier in the burst
+    // are resolved from small per-burst tables, so route and ARP lookups run once per
+    // destination and once per next hop. Frames leave in one batch per egress port in
+    // their arrival order. Only large bursts beat forwardFrame; see ForwardingBenchmark.
+    public void forwardBurst(PacketBuffer[] frames, int count) {
+        if (forwardingBurst) {
+            // A batch sent by this burst came back to the router; the scratch space is in use
+            for (int i = 0; i < count; i++) {
+                forwardFrame(frames[i]);
+            }
+            return;
+        }
+        if (portBatches.length < ports.size() || (portBatches.length > 0 && portBatches[0].length < count)) {
+            portBatches = new PacketBuffer[ports.size()][Math.max(count, 32)];
+            portBatchCount = new int[ports.size()];
+            usedPorts = new int[ports.size()];
+        }
+        if (crashed) {
+            for (int i = 0; i < count; i++) {
+                Telemetry.dropped(getName(), Telemetry.DEVICE_DOWN);
+            }
+            return;
+        }
+        burstEpoch++;
+        long generation = flowCache == null ? 0 : tableGeneration();
+        boolean perFlow = flowCache != null && flowCache.isPerFlow();
+        int usedPortCount = 0;
+        forwardingBurst = true;
+
+        for (int i = 0; i < count; i++) {
+            PacketBuffer frame = frames[i];
+            frame.pull(EthernetFrame.HEADER_LENGTH);
+            int ttl = IPv4Header.ttl(frame);
+            if (ttl <= 1) {
+                Telemetry.dropped(getName(), Telemetry.TTL_EXPIRED);
+                continue;
+            }
+            IPv4Header.setTtl(frame, ttl - 1);
+            int destination = IPv4Header.destination(frame);
+            int length = frame.length();
+
+            int cacheHash = perFlow ? flowHash(frame) : 0;
+            int cached = flowCache == null ? -1 : flowCache.find(destination, cacheHash, generation);
+            RouterPort egress;
+            long macAddress;
+            NextHopGroup group;
+            int member = -1;
+            boolean routed = true;
+            if (cached >= 0) {
+                egress = flowCache.getEgress(cached);
+                macAddress = flowCache.getMacAddress(cached);
+                group = flowCache.getGroup(cached);
+                member = flowCache.getMember(cached);
+            } else {
+                int slot = (destination * 0x9E3779B1) >>> (32 - BURST_TABLE_BITS);
+                if (burstStamp[slot] != burstEpoch || burstDestination[slot] != destination) {
+                    resolveForBurst(slot, destination);
+                }
+                egress = burstEgress[slot];
+                macAddress = burstMac[slot];
+                group = burstGroup[slot];
+                routed = burstRouted[slot];
+                if (group != null) {
+                    member = group.select(perFlow ? cacheHash : flowHash(frame));
+                    if (member < 0) {
+                        Telemetry.dropped(getName(), Telemetry.NEXT_HOP_DOWN);
+                        continue;
+                    }
+                    int hop = resolveNextHopForBurst(group.getAddress(member));
+                    egress = burstHopEgress[hop];
+                    macAddress = burstHopMac[hop];
+                }
+                if (egress != null && macAddress >= 0 && flowCache != null && (group == null || perFlow)) {
+                    flowCache.store(destination, cacheHash, generation, egress, macAddress, group, member);
+                }
+            }
+            if (egress == null) {
+                Telemetry.dropped(getName(), routed ? Telemetry.NEXT_HOP_DOWN : Telemetry.NO_ROUTE); // as in forwardFrame
+                continue;
+            }
+            if (macAddress < 0) {
+                Telemetry.dropped(getName(), Telemetry.NO_ARP_ENTRY);
+                continue;
+            }
+            EthernetFrame.push(frame, macAddress, egress.getMacBits(), EthernetFrame.TYPE_IPV4);
+            int number = egress.getNumber();
+            if (portBatchCount[number] == 0) {
+                usedPorts[usedPortCount++] = number;
+            }
+            portBatches[number][portBatchCount[number]++] = frame;
+            if (group != null) {
+                group.record(member, length); // queued, and every queued frame is sent below
+            }
+        }
+
+        // Only the ports this burst used, so short bursts do not pay for every port
+        for (int i = 0; i < usedPortCount; i++) {
+            int number = usedPorts[i];
+            int n = portBatchCount[number];
+            portBatchCount[number] = 0;
+            ports.get(number).transmitBatch(portBatches[number], n);
+        }
+        forwardingBurst = false;
+    }
+
+    // Route and ARP lookup for one destination, remembered for the rest of the burst
+    private void resolveForBurst(int slot, int destination) {
+        burstStamp[slot] = burstEpoch;
+        burstDestination[slot] = destination;
+        burstGroup[slot] = null;
+        burstEgress[slot] = null;
+        burstMac[slot] = -1;
+        burstRouted[slot] = false;
+        int nextHop = destination;
+        RouterPort egress = egressPort(destination);
+        if (egress == null) {
+            int route = lookupRoute(destination);
+            if (route < 0) {
+                return;
+            }
+            burstRouted[slot] = true;
+            if (routeGroup[route] != null) {
+                burstGroup[slot] = routeGroup[route]; // next hop depends on each frame's flow hash
+                return;
+            }
+            nextHop = routeNextHop[route];
+            egress = egressPort(nextHop);
+        }
+        if (egress != null) {
+            burstEgress[slot] = egress;
+            burstMac[slot] = lookupMac(nextHop);
+        }
+    }
+
+    // Egress port and MAC of one equal-cost next hop, remembered for the rest of the burst
+    private int resolveNextHopForBurst(int nextHop) {
+        int slot = (nextHop * 0x9E3779B1) >>> (32 - BURST_TABLE_BITS);
+        if (burstHopStamp[slot] != burstEpoch || burstHopAddress[slot] != nextHop) {
+            burstHopStamp[slot] = burstEpoch;
+            burstHopAddress[slot] = nextHop;
+            burstHopEgress[slot] = egressPort(nextHop);
+            burstHopMac[slot] = burstHopEgress[slot] == null ? -1 : lookupMac(nextHop);
+        }
+        return slot;
+    }
+
+    // Longest-prefix match, timed for the flight recorder when the lookup is sampled
+    private int lookupRoute(int destination) {
+        RouteLookupEvent event = Telemetry.beginRouteLookup();
+        int route = routingTable.longestMatch(destination);
+        if (event != null) {
+            Telemetry.endRouteLookup(event, getName(), destination, routingTable.size(), route >= 0);
+        }
+        return route;
+    }
+
+    private long lookupMac(int nextHop) {
+        ArpLookupEvent event = Telemetry.beginArpLookup();
+        long macAddress = arpTable.getMacBits(nextHop);
+        if (event != null) {
+            Telemetry.endArpLookup(event, getName(), nextHop, macAddress >= 0);
+        }
+        return macAddress;
+    }
+
+    // Address of the next hop towards a destination: the destination itself when it is
+    // directly connected, 0 when there is no route
+    public int nextHop(int destination) {
+        return nextHop(destination, 0);
+    }
+
+    // Same as nextHop, choosing among equal-cost next hops by the flow hash
+    public int nextHop(int destination, int flowHash) {
+        if (egressPort(destination) != null) {
+            return destination;
+        }
+        int route = routingTable.longestMatch(destination);
+        if (route < 0) {
+            return 0;
+        }
+        NextHopGroup group = routeGroup[route];
+        if (group == null) {
+            return routeNextHop[route];
+        }
+        int member = group.select(flowHash);
+        return member < 0 ? 0 : group.getAddress(member);
+    }
+
+    // Hash of source/destination address, protocol and ports, mixed so that the low
+    // bits used to pick a bucket depend on every field
+    public static int flowHash(int source, int destination, int protocol, int sourcePort, int destinationPort) {
+        int h = source * 0x9E3779B1 ^ destination;
+        h = h * 0x85EBCA6B ^ (protocol << 16 | sourcePort) ^ (destinationPort << 8);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    private static int flowHash(PacketBuffer packet) {
+        int offset = packet.start();
+        int transport = offset + IPv4Header.HEADER_LENGTH;
+        return flowHash(IPv4Header.source(packet), IPv4Header.destination(packet), packet.array()[offset + 1] & 0xFF,
+                packet.getShort(transport), packet.getShort(transport + 2));
+    }
+
+    // Port whose connected subnet contains the address, found through the subnet index
+    public RouterPort egressPort(int address) {
+        int index = findInterfaceIndex(address);
+        if (index < 0 || index >= portByInterface.length) {
+            return null;
+        }
+        RouterPort port = portByInterface[index];
+        return port != null && port.getInterface().getStatus() ? port : null;
+    }
+
     public void forwardPacket(Packet packet) {
-        String destinationIP = packet.getDestinationIP();
-        String nextHop = routingTable.get(destinationIP);
-        if (nextHop != null) {
-            String macAddress = arpTable.getMacAddress(nextHop);
-            if (macAddress != null) {
-                System.out.println("Forwarding packet to " + destinationIP + " via next hop " + nextHop + " with MAC " + macAddress);
+        int destination = packet.getDestinationAddress();
+        int nextHop = nextHop(destination, flowHash(packet.getSourceAddress(), destination, 0, 0, 0));
+        if (nextHop != 0) {
+            long macAddress = arpTable.getMacBits(nextHop);
+            if (macAddress >= 0) {
+                System.out.println("Forwarding packet to " + packet.getDestinationIP() + " via next hop " + IPv4.format(nextHop) + " with MAC " + Device.formatMac(macAddress));
             } else {
-                System.out.println("MAC address for next hop " + nextHop + " not found.");
+                System.out.println("MAC address for next hop " + IPv4.format(nextHop) + " not found.");
             }
         } else {
-            System.out.println("No route to " + destinationIP);
+            System.out.println("No route to " + packet.getDestinationIP());
         }
     }
 }
@@ -260,6 +1404,43 @@ public class NetworkLayer {
         router1.configureOSPF("0", "192.168.1.0/24");
         router2.configureOSPF("0", "192.168.3.0/24");
 
+        // Test case 7: Equal-cost multipath
+        System.out.println("\nTest Case 7: ECMP with Resilient Flow Hashing");
+        router1.addEqualCostRoute("192.168.3.0/24", "192.168.2.3");
+        router1.addEqualCostRoute("192.168.3.0/24", "192.168.2.4");
+        router1.showRoutingTable();
+        int destination = IPv4.parse("192.168.3.4");
+        int[] before = new int[1000];
+        Map<Integer, Integer> load = new TreeMap<>();
+        for (int i = 0; i < before.length; i++) {
+            before[i] = router1.nextHop(destination, Router.flowHash(IPv4.parse("192.168.1.2"), destination, 6, 1024 + i, 80));
+            load.merge(before[i], 1, Integer::sum);
+        }
+        load.forEach((nextHop, flows) -> System.out.println("Next hop " + IPv4.format(nextHop) + ": " + flows + " flows"));
+        router1.setNextHopStatus("192.168.2.3", false);
+        int moved = 0;
+        int unaffectedMoved = 0;
+        for (int i = 0; i < before.length; i++) {
+            int after = router1.nextHop(destination, Router.flowHash(IPv4.parse("192.168.1.2"), destination, 6, 1024 + i, 80));
+            if (after != before[i]) {
+                moved++;
+                if (before[i] != IPv4.parse("192.168.2.3")) {
+                    unaffectedMoved++;
+                }
+            }
+        }
+        System.out.println("After 192.168.2.3 fails: " + moved + " flows moved, " + unaffectedMoved + " of them from surviving paths");
+
+        System.out.println("\nTest Case 8: Route Churn");
+        int slotsBefore = router1.getRouteSlots();
+        int churnNetwork = IPv4.parse("172.16.0.0");
+        for (int i = 0; i < 100_000; i++) {
+            int network = churnNetwork + ((i & 1023) << 8);
+            router1.addRoute(network, 24, IPv4.parse("192.168.2.3"));
+            router1.removeRoute(network, 24);
+        }
+        System.out.println("Route slots after 100000 add/remove cycles: " + router1.getRouteSlots() + " (" + slotsBefore + " before)");
+
         System.out.println("\nAll Test Cases Completed.");
     }
 }
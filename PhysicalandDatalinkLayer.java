@@ -6,6 +6,7 @@ import java.util.Random;
 // Device classes
 abstract class Device {
     protected String macAddress;
+    protected long macBits;
 
     public Device() {
         // Generate random MAC address
@@ -22,13 +23,214 @@ abstract class Device {
             }
         }
         macAddress = sb.toString().toUpperCase();
+        macBits = macToLong(macAddress);
+    }
+
+    // Device with an assigned MAC address; the string form is only built when asked for
+    protected Device(long macBits) {
+        this.macBits = macBits;
     }
 
     public String getMacAddress() {
+        if (macAddress == null) {
+            macAddress = formatMac(macBits);
+        }
         return macAddress;
     }
 
+    // MAC address packed into the low 48 bits, as carried in frame headers
+    public long getMacBits() {
+        return macBits;
+    }
+
     public abstract void display();
+
+    // Frames addressed to a device that does not handle them are dropped
+    public void receiveFrame(PacketBuffer frame) {
+    }
+
+    // Frame arriving from a known neighbour; only devices that learn on ingress use it
+    public void receiveFrame(PacketBuffer frame, Device from) {
+        receiveFrame(frame);
+    }
+
+    // Burst of frames arriving on one link; devices without a batch path take them one by one
+    public void receiveFrames(PacketBuffer[] frames, int count) {
+        for (int i = 0; i < count; i++) {
+            receiveFrame(frames[i]);
+        }
+    }
+
+    public static long macToLong(String macAddress) {
+        long bits = 0;
+        for (int i = 0; i < macAddress.length(); i++) {
+            char c = macAddress.charAt(i);
+            if (c != ':') {
+                bits = (bits << 4) | Character.digit(c, 16);
+            }
+        }
+        return bits;
+    }
+
+    public static String formatMac(long bits) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 5; i >= 0; i--) {
+            int octet = (int) (bits >>> (i * 8)) & 0xFF;
+            if (octet < 16) {
+                sb.append('0');
+            }
+            sb.append(Integer.toHexString(octet).toUpperCase());
+            if (i > 0) {
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+}
+
+// Link-layer endpoint that only counts the frames handed to it
+class FrameSink extends Device {
+    private long frames;
+    private long batches;
+
+    public long getFrames() { return frames; }
+    public long getBatches() { return batches; }
+
+    public void receiveFrame(PacketBuffer frame) {
+        frames++;
+        batches++;
+    }
+
+    public void receiveFrames(PacketBuffer[] frames, int count) {
+        this.frames += count;
+        batches++;
+    }
+
+    public void display() {
+        System.out.println("Frame sink: " + frames + " frames in " + batches + " batches");
+    }
+}
+
+// Single buffer shared by every layer. The payload is written once and each
+// layer prepends its header into the reserved headroom instead of copying.
+class PacketBuffer {
+    public static final int DEFAULT_HEADROOM = 64;
+
+    private final byte[] data;
+    private final int headroom;
+    private int start;
+    private int end;
+
+    public PacketBuffer(int headroom, int capacity) {
+        this.data = new byte[headroom + capacity];
+        this.headroom = headroom;
+        this.start = headroom;
+        this.end = headroom;
+    }
+
+    public byte[] array() { return data; }
+    public int start() { return start; }
+    public int end() { return end; }
+    public int length() { return end - start; }
+    public void setStart(int start) { this.start = start; }
+    public void setEnd(int end) { this.end = end; }
+
+    // Empty the buffer so it can carry a new payload
+    public void clear() {
+        start = headroom;
+        end = headroom;
+    }
+
+    // Reserve space in front of the current data and return its offset
+    public int prepend(int length) {
+        if (length > start) {
+            throw new IllegalStateException("Not enough headroom for " + length + " bytes");
+        }
+        start -= length;
+        return start;
+    }
+
+    // Strip a header from the front and return the offset it was at
+    public int pull(int length) {
+        if (length > end - start) {
+            throw new IllegalStateException("Frame shorter than " + length + " bytes");
+        }
+        int offset = start;
+        start += length;
+        return offset;
+    }
+
+    // Reserve space after the current data and return its offset
+    public int append(int length) {
+        if (end + length > data.length) {
+            throw new IllegalStateException("Not enough tailroom for " + length + " bytes");
+        }
+        int offset = end;
+        end += length;
+        return offset;
+    }
+
+    public void append(byte[] bytes, int length) {
+        System.arraycopy(bytes, 0, data, append(length), length);
+    }
+
+    public void trim(int length) {
+        end -= length;
+    }
+
+    public int getShort(int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    public void putShort(int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    public int getInt(int offset) {
+        return (getShort(offset) << 16) | getShort(offset + 2);
+    }
+
+    public void putInt(int offset, int value) {
+        putShort(offset, value >>> 16);
+        putShort(offset + 2, value);
+    }
+
+    public long getMac(int offset) {
+        return ((long) getShort(offset) << 32) | (getInt(offset + 2) & 0xFFFFFFFFL);
+    }
+
+    public void putMac(int offset, long mac) {
+        putShort(offset, (int) (mac >>> 32));
+        putInt(offset + 2, (int) mac);
+    }
+}
+
+// Ethernet II header: destination MAC, source MAC, EtherType
+class EthernetFrame {
+    public static final int HEADER_LENGTH = 14;
+    public static final int TYPE_IPV4 = 0x0800;
+    public static final long BROADCAST = 0xFFFFFFFFFFFFL;
+
+    public static void push(PacketBuffer frame, long destination, long source, int type) {
+        int offset = frame.prepend(HEADER_LENGTH);
+        frame.putMac(offset, destination);
+        frame.putMac(offset + 6, source);
+        frame.putShort(offset + 12, type);
+    }
+
+    public static long destination(PacketBuffer frame) {
+        return frame.getMac(frame.start());
+    }
+
+    public static long source(PacketBuffer frame) {
+        return frame.getMac(frame.start() + 6);
+    }
+}
+
+// Upper layer bound to an end device, handed frames with the Ethernet header removed
+interface FrameListener {
+    void onFrame(EndDevice device, PacketBuffer frame);
 }
 
 class Hub extends Device {
@@ -45,6 +247,18 @@ class Hub extends Device {
         connectedDevices.add(device);
     }
 
+    // Repeat the frame out of every port except the one it came from
+    public void receiveFrame(PacketBuffer frame) {
+        long source = EthernetFrame.source(frame);
+        int mark = frame.start();
+        for (EndDevice device : connectedDevices) {
+            if (device.getMacBits() != source) {
+                device.receiveFrame(frame);
+                frame.setStart(mark);
+            }
+        }
+    }
+
     public void display() {
         System.out.println("HUB: " + name);
         System.out.println("\t\t MAC ADDRESS: " + getMacAddress());
@@ -68,12 +282,18 @@ class Switch extends Device {
     private String name;
     private int ports;
     private HashMap<String, Device> addressTable;
+    private HashMap<Long, Device> frameTable; // same entries keyed by packed MAC for frame lookups
+    private HashMap<Long, Device> stationTable; // source MAC -> attached device it was last seen from
+    private PacketBuffer flooding; // frame being flooded, to catch it coming back round a loop
+    private long floodingSource;
 
     public Switch(int ports, String name) {
         super();
         this.ports = ports;
         this.name = name;
         this.addressTable = new HashMap<>();
+        this.frameTable = new HashMap<>();
+        this.stationTable = new HashMap<>();
     }
 
     public void display() {
@@ -86,9 +306,65 @@ class Switch extends Device {
         String macAddress = device.getMacAddress();
         if (!addressTable.containsKey(macAddress)) {
             addressTable.put(macAddress, device);
+            frameTable.put(device.getMacBits(), device);
+            stationTable.put(device.getMacBits(), device);
+            Telemetry.switchLearned(name, device.getMacBits());
         }
     }
 
+    // A device whose link goes down is forgotten, so frames for it are flooded to the
+    // remaining devices until its link comes back and it is learned again
+    public void setLinkStatus(Device device, boolean status) {
+        if (status) {
+            learnAddress(device);
+        } else {
+            addressTable.remove(device.getMacAddress());
+            frameTable.remove(device.getMacBits());
+            stationTable.values().removeIf(port -> port == device);
+        }
+    }
+
+    // Frame from a sender that did not say which neighbour it is; a directly attached
+    // device is recognised by its own address
+    public void receiveFrame(PacketBuffer frame) {
+        receiveFrame(frame, frameTable.get(EthernetFrame.source(frame)));
+    }
+
+    // Learn the source on the ingress device, then forward to the learned device, or flood
+    // to every other attached device when the destination is unknown
+    public void receiveFrame(PacketBuffer frame, Device from) {
+        long source = EthernetFrame.source(frame);
+        long destination = EthernetFrame.destination(frame);
+        if (from != null && stationTable.get(source) != from) {
+            stationTable.put(source, from);
+        }
+        Device target = stationTable.get(destination);
+        if (target != null) {
+            if (target != from) { // otherwise the destination is on the segment it came from
+                target.receiveFrame(frame, this);
+            }
+            return;
+        }
+        if (frame == flooding && source == floodingSource) {
+            Telemetry.dropped(name, Telemetry.FORWARDING_LOOP);
+            return;
+        }
+        PacketBuffer outer = flooding;
+        long outerSource = floodingSource;
+        flooding = frame;
+        floodingSource = source;
+        int mark = frame.start();
+        Telemetry.switchFlooded(name, destination, frameTable.size());
+        for (Device device : frameTable.values()) {
+            if (device != from && device.getMacBits() != source) {
+                device.receiveFrame(frame, this);
+                frame.setStart(mark);
+            }
+        }
+        flooding = outer;
+        floodingSource = outerSource;
+    }
+
     public Device getDeviceByMacAddress(String macAddress) {
         return addressTable.get(macAddress);
     }
@@ -101,15 +377,64 @@ class Switch extends Device {
 
 class EndDevice extends Device {
     private String name;
+    private int port;
+    private Device link; // hub or switch this device is cabled to
+    private FrameListener listener;
 
     public EndDevice(String name) {
+        this(name, 0);
+    }
+
+    public EndDevice(String name, int port) {
         super();
         this.name = name;
+        this.port = port;
+    }
+
+    // For views whose name, port and address live elsewhere
+    protected EndDevice(long macBits) {
+        super(macBits);
     }
 
     public void display() {
         System.out.println("EndDevice: " + name);
         System.out.println("\t\t MAC ADDRESS: " + getMacAddress());
+        if (port != 0) {
+            System.out.println("\t\t PORT NUMBER: " + port);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void connect(Device link) {
+        this.link = link;
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    public void transmitFrame(PacketBuffer frame) {
+        if (link != null) {
+            Telemetry.frameTransmitted(macBits, frame.length());
+            link.receiveFrame(frame);
+        }
+    }
+
+    public void receiveFrame(PacketBuffer frame) {
+        long destination = EthernetFrame.destination(frame);
+        if (listener == null || (destination != macBits && destination != EthernetFrame.BROADCAST)) {
+            return;
+        }
+        Telemetry.frameReceived(macBits, frame.length());
+        frame.pull(EthernetFrame.HEADER_LENGTH);
+        listener.onFrame(this, frame);
     }
 
     // New method for sending data
@@ -0,0 +1,141 @@
+// Receives application payloads delivered to a host, with all headers removed
+interface PayloadListener {
+    void onPayload(HostStack host, PacketBuffer payload);
+}
+
+// Application data pushed through Transport, Network and Data Link layers of one
+// end device, forwarded by switches and routers, and delivered to another end device.
+class HostStack implements FrameListener {
+    private EndDevice device;
+    private int address;
+    private int mask;
+    private ARPTable arpTable;
+    private int gateway;
+    private TransportLayer transportLayer;
+    private ApplicationLayer applicationLayer;
+    private PayloadListener payloadListener;
+    private long messagesReceived;
+    private long bytesReceived;
+
+    public HostStack(EndDevice device, String ipAddress, String subnetMask, String gateway) {
+        this.device = device;
+        this.address = IPv4.parse(ipAddress);
+        this.mask = IPv4.parse(subnetMask);
+        this.gateway = IPv4.parse(gateway);
+        this.arpTable = new ARPTable();
+        this.transportLayer = new TransportLayer();
+        this.applicationLayer = new ApplicationLayer();
+        device.setFrameListener(this);
+    }
+
+    public EndDevice getDevice() { return device; }
+    public int getAddress() { return address; }
+    public long getMessagesReceived() { return messagesReceived; }
+    public long getBytesReceived() { return bytesReceived; }
+
+    public void addArpEntry(String ipAddress, String macAddress) {
+        arpTable.addEntry(ipAddress, macAddress);
+    }
+
+    public void setPayloadListener(PayloadListener payloadListener) {
+        this.payloadListener = payloadListener;
+    }
+
+    // Encapsulate the payload layer by layer inside the given buffer and put it on the wire
+    public boolean send(PacketBuffer buffer, byte[] payload, int destination, int destinationPort) {
+        return send(buffer, payload, payload.length, destination, destinationPort);
+    }
+
+    public boolean send(PacketBuffer buffer, byte[] payload, int length, int destination, int destinationPort) {
+        applicationLayer.writeMessage(buffer, payload, length);
+        transportLayer.encapsulate(buffer, device.getPort(), destinationPort);
+        IPv4Header.push(buffer, address, destination, IPv4Header.PROTOCOL_TCP);
+
+        int nextHop = IPv4.sameSubnet(address, destination, mask) ? destination : gateway;
+        long macAddress = arpTable.getMacBits(nextHop);
+        if (macAddress < 0) {
+            return false;
+        }
+        EthernetFrame.push(buffer, macAddress, device.getMacBits(), EthernetFrame.TYPE_IPV4);
+        device.transmitFrame(buffer);
+        return true;
+    }
+
+    public void onFrame(EndDevice receiver, PacketBuffer frame) {
+        if (IPv4Header.destination(frame) != address) {
+            return;
+        }
+        frame.pull(IPv4Header.HEADER_LENGTH);
+        if (transportLayer.decapsulate(frame) != device.getPort()) {
+            return;
+        }
+        messagesReceived++;
+        bytesReceived += frame.length();
+        if (payloadListener != null) {
+            payloadListener.onPayload(this, frame);
+        }
+    }
+}
+
+// Main class to measure application throughput through the whole stack
+public class ProtocolStack {
+    // host A - switch 1 - router - switch 2 - host B, returned as { host A, host B }
+    public static HostStack[] routedPair() {
+        EndDevice deviceA = new EndDevice("Device A", 1024);
+        EndDevice deviceB = new EndDevice("Device B", 2048);
+        Switch switch1 = new Switch(24, "Switch 1");
+        Switch switch2 = new Switch(24, "Switch 2");
+        Router router = new Router("Router1");
+
+        Interface lan1 = new Interface("GigabitEthernet0/0", "00:1A:2B:3C:4D:5E");
+        lan1.configure("10.0.1.1", "255.255.255.0");
+        Interface lan2 = new Interface("GigabitEthernet0/1", "00:1A:2B:3C:4D:5F");
+        lan2.configure("10.0.2.1", "255.255.255.0");
+        RouterPort port1 = router.addPort(lan1);
+        RouterPort port2 = router.addPort(lan2);
+
+        deviceA.connect(switch1);
+        port1.connect(switch1);
+        switch1.learnAddress(deviceA);
+        switch1.learnAddress(port1);
+        deviceB.connect(switch2);
+        port2.connect(switch2);
+        switch2.learnAddress(deviceB);
+        switch2.learnAddress(port2);
+
+        HostStack hostA = new HostStack(deviceA, "10.0.1.10", "255.255.255.0", "10.0.1.1");
+        HostStack hostB = new HostStack(deviceB, "10.0.2.10", "255.255.255.0", "10.0.2.1");
+        hostA.addArpEntry("10.0.1.1", lan1.getMacAddress());
+        hostB.addArpEntry("10.0.2.1", lan2.getMacAddress());
+        router.addArpEntry("10.0.1.10", deviceA.getMacAddress());
+        router.addArpEntry("10.0.2.10", deviceB.getMacAddress());
+        return new HostStack[] { hostA, hostB };
+    }
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int messageSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+        HostStack[] hosts = routedPair();
+        HostStack hostA = hosts[0];
+        HostStack hostB = hosts[1];
+        EndDevice deviceA = hostA.getDevice();
+        EndDevice deviceB = hostB.getDevice();
+
+        byte[] payload = new byte[messageSize];
+        PacketBuffer buffer = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, messageSize);
+
+        System.out.println("Sending " + messages + " messages of " + messageSize + " bytes from "
+                + deviceA.getName() + " to " + deviceB.getName() + " through Router1");
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            hostA.send(buffer, payload, hostB.getAddress(), deviceB.getPort());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Messages delivered: " + hostB.getMessagesReceived());
+        System.out.printf("Elapsed: %.3f s%n", seconds);
+        System.out.printf("Throughput: %.0f messages/s, %.1f MB/s of application data%n",
+                hostB.getMessagesReceived() / seconds, hostB.getBytesReceived() / seconds / 1e6);
+    }
+}
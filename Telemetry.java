@@ -0,0 +1,365 @@
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Flight Recorder events for the simulator's hot paths. Record a run with
+//   java -XX:StartFlightRecording=filename=run.jfr,settings=profile <Main>
+// and the events appear next to JFR's CPU samples and allocation profile. Per-frame and
+// per-lookup events are sampled, one in netsim.jfr.sample calls (default 1024), and
+// carry no stack trace. Drops and retransmissions, which can also come in storms, are
+// sampled one in netsim.jfr.dropSample (default 16), drops counted separately for each
+// reason; SPF and RIP runs only above a duration threshold.
+
+@Name("netsim.FrameTransmit")
+@Label("Frame Transmit")
+@Category({ "Network Simulator", "Link" })
+@Description("Sampled frame put on a link by a device")
+@StackTrace(false)
+class FrameTransmitEvent extends Event {
+    @Label("Device MAC")
+    long device;
+
+    @Label("Length")
+    @DataAmount
+    int length;
+
+    @Label("Frames Represented")
+    int represented;
+}
+
+@Name("netsim.FrameReceive")
+@Label("Frame Receive")
+@Category({ "Network Simulator", "Link" })
+@Description("Sampled frame accepted by a device")
+@StackTrace(false)
+class FrameReceiveEvent extends Event {
+    @Label("Device MAC")
+    long device;
+
+    @Label("Length")
+    @DataAmount
+    int length;
+
+    @Label("Frames Represented")
+    int represented;
+}
+
+@Name("netsim.SwitchLearn")
+@Label("Switch Learn")
+@Category({ "Network Simulator", "Switch" })
+@StackTrace(false)
+class SwitchLearnEvent extends Event {
+    @Label("Switch")
+    String switchName;
+
+    @Label("Learned MAC")
+    long address;
+}
+
+@Name("netsim.SwitchFlood")
+@Label("Switch Flood")
+@Category({ "Network Simulator", "Switch" })
+@Description("Sampled frame flooded because its destination was unknown")
+@StackTrace(false)
+class SwitchFloodEvent extends Event {
+    @Label("Switch")
+    String switchName;
+
+    @Label("Destination MAC")
+    long destination;
+
+    @Label("Ports Flooded")
+    int ports;
+}
+
+@Name("netsim.RouteLookup")
+@Label("Route Lookup")
+@Category({ "Network Simulator", "Router" })
+@Description("Sampled longest-prefix match in a routing table")
+@StackTrace(false)
+@Threshold("0 ns")
+class RouteLookupEvent extends Event {
+    @Label("Router")
+    String router;
+
+    @Label("Destination")
+    int destination;
+
+    @Label("Routes")
+    int routes;
+
+    @Label("Found")
+    boolean found;
+}
+
+@Name("netsim.ArpLookup")
+@Label("ARP Lookup")
+@Category({ "Network Simulator", "Router" })
+@Description("Sampled next-hop MAC resolution")
+@StackTrace(false)
+@Threshold("0 ns")
+class ArpLookupEvent extends Event {
+    @Label("Router")
+    String router;
+
+    @Label("Next Hop")
+    int nextHop;
+
+    @Label("Found")
+    boolean found;
+}
+
+@Name("netsim.Spf")
+@Label("SPF Run")
+@Category({ "Network Simulator", "Routing" })
+@Description("Shortest-path computation over a link-state database")
+@Threshold("1 ms")
+class SpfEvent extends Event {
+    @Label("Router")
+    String router;
+
+    @Label("Nodes")
+    int nodes;
+}
+
+@Name("netsim.RipUpdate")
+@Label("RIP Update")
+@Category({ "Network Simulator", "Routing" })
+@Description("Distance-vector update applied to a routing table")
+@StackTrace(false)
+@Threshold("100 us")
+class RipUpdateEvent extends Event {
+    @Label("Router")
+    String router;
+
+    @Label("Entries")
+    int entries;
+
+    @Label("Changed")
+    boolean changed;
+}
+
+@Name("netsim.Retransmit")
+@Label("Retransmission")
+@Category({ "Network Simulator", "Link" })
+@StackTrace(false)
+class RetransmitEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Retransmissions Represented")
+    int represented;
+}
+
+@Name("netsim.Drop")
+@Label("Drop")
+@Category({ "Network Simulator", "Drops" })
+@Description("Frame or packet discarded by a device, link or queue")
+class DropEvent extends Event {
+    @Label("Where")
+    String where;
+
+    @Label("Reason")
+    String reason;
+
+    @Label("Drops Represented")
+    int represented;
+}
+
+// Entry points used by the simulator. Each one is a counter check and, when the
+// recording has the event enabled, one short-lived event object.
+class Telemetry {
+    public static final String TTL_EXPIRED = "TTL expired";
+    public static final String NO_ROUTE = "no route";
+    public static final String NEXT_HOP_DOWN = "next hop down";
+    public static final String NO_ARP_ENTRY = "no ARP entry";
+    public static final String DEVICE_DOWN = "device down";
+    public static final String LINK_ERRORS = "link errors";
+    public static final String QUEUE_FULL = "queue full";
+    public static final String OVERSIZE = "oversize";
+    public static final String FORWARDING_LOOP = "forwarding loop";
+
+    private static final int SAMPLE_MASK = Integer.highestOneBit(Math.max(1, Integer.getInteger("netsim.jfr.sample", 1024))) - 1;
+    private static int transmitCount;
+    private static int receiveCount;
+    private static int lookupCount;
+    private static int arpCount;
+    private static int floodCount;
+    private static final int DROP_MASK = Integer.highestOneBit(Math.max(1, Integer.getInteger("netsim.jfr.dropSample", 16))) - 1;
+    private static Map<String, int[]> dropCounts = new HashMap<>(); // by reason
+    private static int retransmitCount;
+
+    public static void frameTransmitted(long device, int length) {
+        if ((++transmitCount & SAMPLE_MASK) == 0) {
+            FrameTransmitEvent event = new FrameTransmitEvent();
+            if (event.isEnabled()) {
+                event.device = device;
+                event.length = length;
+                event.represented = SAMPLE_MASK + 1;
+                event.commit();
+            }
+        }
+    }
+
+    public static void frameReceived(long device, int length) {
+        if ((++receiveCount & SAMPLE_MASK) == 0) {
+            FrameReceiveEvent event = new FrameReceiveEvent();
+            if (event.isEnabled()) {
+                event.device = device;
+                event.length = length;
+                event.represented = SAMPLE_MASK + 1;
+                event.commit();
+            }
+        }
+    }
+
+    public static void switchLearned(String switchName, long address) {
+        SwitchLearnEvent event = new SwitchLearnEvent();
+        if (event.isEnabled()) {
+            event.switchName = switchName;
+            event.address = address;
+            event.commit();
+        }
+    }
+
+    public static void switchFlooded(String switchName, long destination, int ports) {
+        if ((++floodCount & SAMPLE_MASK) == 0) {
+            SwitchFloodEvent event = new SwitchFloodEvent();
+            if (event.isEnabled()) {
+                event.switchName = switchName;
+                event.destination = destination;
+                event.ports = ports;
+                event.commit();
+            }
+        }
+    }
+
+    // Started route lookup when this one is sampled and recorded, otherwise null
+    public static RouteLookupEvent beginRouteLookup() {
+        if ((++lookupCount & SAMPLE_MASK) != 0) {
+            return null;
+        }
+        RouteLookupEvent event = new RouteLookupEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    public static void endRouteLookup(RouteLookupEvent event, String router, int destination, int routes, boolean found) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.router = router;
+            event.destination = destination;
+            event.routes = routes;
+            event.found = found;
+            event.commit();
+        }
+    }
+
+    public static ArpLookupEvent beginArpLookup() {
+        if ((++arpCount & SAMPLE_MASK) != 0) {
+            return null;
+        }
+        ArpLookupEvent event = new ArpLookupEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    public static void endArpLookup(ArpLookupEvent event, String router, int nextHop, boolean found) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.router = router;
+            event.nextHop = nextHop;
+            event.found = found;
+            event.commit();
+        }
+    }
+
+    public static SpfEvent beginSpf() {
+        SpfEvent event = new SpfEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    public static void endSpf(SpfEvent event, String router, int nodes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.router = router;
+            event.nodes = nodes;
+            event.commit();
+        }
+    }
+
+    // Same for routers known only by index; the name is built only when the run is recorded
+    public static void endSpf(SpfEvent event, int router, int nodes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.router = "Router" + (router + 1);
+            event.nodes = nodes;
+            event.commit();
+        }
+    }
+
+    public static RipUpdateEvent beginRipUpdate() {
+        RipUpdateEvent event = new RipUpdateEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    public static void endRipUpdate(RipUpdateEvent event, String router, int entries, boolean changed) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.router = router;
+            event.entries = entries;
+            event.changed = changed;
+            event.commit();
+        }
+    }
+
+    public static void retransmitted(String stage, int attempt) {
+        if ((++retransmitCount & DROP_MASK) == 0) {
+            RetransmitEvent event = new RetransmitEvent();
+            if (event.isEnabled()) {
+                event.stage = stage;
+                event.attempt = attempt;
+                event.represented = DROP_MASK + 1;
+                event.commit();
+            }
+        }
+    }
+
+    public static void dropped(String where, String reason) {
+        int[] count = dropCounts.computeIfAbsent(reason, r -> new int[1]);
+        if ((++count[0] & DROP_MASK) == 0) {
+            DropEvent event = new DropEvent();
+            if (event.isEnabled()) {
+                event.where = where;
+                event.reason = reason;
+                event.represented = DROP_MASK + 1;
+                event.commit();
+            }
+        }
+    }
+}
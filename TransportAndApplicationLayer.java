@@ -2,6 +2,7 @@ import java.util.*;
 
 // Transport Layer with Go-Back-N protocol
 class TransportLayer {
+    public static final int HEADER_LENGTH = 8; // source port, destination port, sequence number
     private static final int WINDOW_SIZE = 4;
     private Queue<String> senderBuffer;
     private Queue<String> receiverBuffer;
@@ -41,6 +42,20 @@ class TransportLayer {
         System.out.println("Receiving data at " + receiver.getMacAddress() + " via Transport Layer");
         receiverBuffer.offer(data);
     }
+
+    // Prepend the segment header in front of the payload already in the buffer
+    public void encapsulate(PacketBuffer buffer, int sourcePort, int destinationPort) {
+        int offset = buffer.prepend(HEADER_LENGTH);
+        buffer.putShort(offset, sourcePort);
+        buffer.putShort(offset + 2, destinationPort);
+        buffer.putInt(offset + 4, sequenceNumber++);
+    }
+
+    // Strip the segment header and return the destination port
+    public int decapsulate(PacketBuffer buffer) {
+        int offset = buffer.pull(HEADER_LENGTH);
+        return buffer.getShort(offset + 2);
+    }
 }
 
 // Application Layer services
@@ -52,53 +67,11 @@ class ApplicationLayer {
     public void sendFTPRequest(EndDevice sender, EndDevice receiver, String request) {
         System.out.println("Sending FTP request from " + sender.getMacAddress() + ":" + sender.getPort() + " to " + receiver.getMacAddress() + ":" + receiver.getPort() + ": " + request);
     }
-}
-
-// Device class (for MAC address)
-abstract class Device {
-    protected String macAddress;
-
-    public Device() {
-        // Generating a random MAC address
-        this.macAddress = generateRandomMACAddress();
-    }
-
-    private String generateRandomMACAddress() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < 6; i++) {
-            sb.append(String.format("%02X", (int) (Math.random() * 256)));
-            if (i < 5) {
-                sb.append(':');
-            }
-        }
-        return sb.toString();
-    }
 
-    public String getMacAddress() {
-        return macAddress;
-    }
-}
-
-// EndDevice class
-class EndDevice extends Device {
-    private String name;
-    private int port;
-
-    public EndDevice(String name, int port) {
-        super();
-        this.name = name;
-        this.port = port;
-    }
-
-    public void display() {
-        System.out.println("EndDevice: " + name);
-        System.out.println("MAC Address: " + getMacAddress());
-        System.out.println("Port Number: " + port);
-        System.out.println();
-    }
-
-    public int getPort() {
-        return port;
+    // Write application data into an empty buffer, leaving headroom for the lower layers
+    public void writeMessage(PacketBuffer buffer, byte[] payload, int length) {
+        buffer.clear();
+        buffer.append(payload, length);
     }
 }
 
@@ -112,7 +85,9 @@ public class TransportAndApplicationLayer {
         // Display devices
         System.out.println("Devices:");
         device1.display();
+        System.out.println();
         device2.display();
+        System.out.println();
 
         // Create layers
         TransportLayer transportLayer = new TransportLayer();
@@ -0,0 +1,633 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Callback run by the event queue at a simulated time
+interface SimEvent {
+    void fire(long now, int arg);
+}
+
+// Discrete event scheduler. Events are (time, handler, argument) triples kept in
+// parallel primitive arrays forming a binary heap, so scheduling does not allocate.
+class EventQueue {
+    private long[] times = new long[1024];
+    private int[] handlers = new int[1024];
+    private int[] args = new int[1024];
+    private int size;
+    private long now;
+    private long processed;
+    private List<SimEvent> registered = new ArrayList<>();
+
+    // Register a handler once and schedule it by the returned index
+    public int register(SimEvent event) {
+        registered.add(event);
+        return registered.size() - 1;
+    }
+
+    public long now() { return now; }
+    public long getProcessed() { return processed; }
+    public boolean isEmpty() { return size == 0; }
+    public int size() { return size; }
+
+    public void schedule(long time, int handler, int arg) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            handlers = Arrays.copyOf(handlers, capacity);
+            args = Arrays.copyOf(args, capacity);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (times[parent] <= time) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        times[i] = time;
+        handlers[i] = handler;
+        args[i] = arg;
+    }
+
+    public void scheduleAfter(long delay, int handler, int arg) {
+        schedule(now + delay, handler, arg);
+    }
+
+    public long nextTime() {
+        return size == 0 ? Long.MAX_VALUE : times[0];
+    }
+
+    // Fire events in time order until the queue is empty or the next event is after the limit
+    public void run(long until) {
+        while (size > 0 && times[0] <= until) {
+            now = times[0];
+            int handler = handlers[0];
+            int arg = args[0];
+            removeFirst();
+            processed++;
+            registered.get(handler).fire(now, arg);
+        }
+    }
+
+    private void removeFirst() {
+        size--;
+        long time = times[size];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && times[child + 1] < times[child]) {
+                child++;
+            }
+            if (times[child] >= time) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        move(size, i);
+    }
+
+    private void move(int from, int to) {
+        times[to] = times[from];
+        handlers[to] = handlers[from];
+        args[to] = args[from];
+    }
+}
+
+// Arrival processes produce the gap in nanoseconds until the next session starts
+interface ArrivalProcess {
+    long nextGap(Random random);
+}
+
+class PoissonArrivals implements ArrivalProcess {
+    private double ratePerSecond;
+
+    public PoissonArrivals(double ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    public long nextGap(Random random) {
+        return (long) (-Math.log(1 - random.nextDouble()) / ratePerSecond * 1e9);
+    }
+}
+
+// Poisson arrivals during exponentially distributed ON periods, silence during OFF periods
+class OnOffArrivals implements ArrivalProcess {
+    private PoissonArrivals onArrivals;
+    private double meanOnSeconds;
+    private double meanOffSeconds;
+    private long onRemaining;
+
+    public OnOffArrivals(double ratePerSecond, double meanOnSeconds, double meanOffSeconds) {
+        this.onArrivals = new PoissonArrivals(ratePerSecond);
+        this.meanOnSeconds = meanOnSeconds;
+        this.meanOffSeconds = meanOffSeconds;
+    }
+
+    public long nextGap(Random random) {
+        long gap = onArrivals.nextGap(random);
+        long silence = 0;
+        while (gap > onRemaining) {
+            gap -= onRemaining;
+            silence += exponential(random, meanOffSeconds);
+            onRemaining = exponential(random, meanOnSeconds);
+        }
+        onRemaining -= gap;
+        return gap + silence;
+    }
+
+    private static long exponential(Random random, double meanSeconds) {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanSeconds * 1e9);
+    }
+}
+
+// Heavy-tailed transfer sizes, truncated at a maximum
+class ParetoSize {
+    private double alpha;
+    private int minimum;
+    private int maximum;
+
+    public ParetoSize(double alpha, int minimum, int maximum) {
+        this.alpha = alpha;
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    public int next(Random random) {
+        double size = minimum / Math.pow(1 - random.nextDouble(), 1 / alpha);
+        return (int) Math.min(size, maximum);
+    }
+}
+
+// Completion times bucketed by powers of two of nanoseconds
+class CompletionStats {
+    private long[] buckets = new long[64];
+    private long count;
+    private long total;
+    private long max;
+
+    public void record(long nanos) {
+        buckets[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))]++;
+        count++;
+        total += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    public long getCount() { return count; }
+
+    // Upper bound of the bucket holding the given fraction of completions
+    public long percentile(double fraction) {
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= target && seen > 0) {
+                return Math.min(1L << (i + 1), max);
+            }
+        }
+        return max;
+    }
+
+    public void display(String label) {
+        if (count == 0) {
+            System.out.println(label + ": no completed sessions");
+            return;
+        }
+        System.out.printf("%s: %d completed, mean %.3f ms, p50 <= %.3f ms, p99 <= %.3f ms, max %.3f ms%n",
+                label, count, total / (double) count / 1e6, percentile(0.5) / 1e6, percentile(0.99) / 1e6, max / 1e6);
+    }
+}
+
+// Per-session state kept in parallel primitive arrays so millions of sessions
+// cost a few tens of bytes each. Freed slots are reused.
+class SessionTable {
+    public static final byte HTTP_REQUEST = 0;
+    public static final byte HTTP_RESPONSE = 1;
+    public static final byte FTP = 2;
+
+    private byte[] state = new byte[1024];
+    private int[] source = new int[1024];
+    private int[] destination = new int[1024];
+    private int[] remaining = new int[1024];
+    private int[] responseBytes = new int[1024];
+    private long[] startTime = new long[1024];
+    private byte[] failures = new byte[1024]; // failed sends of the current segment
+    private int[] free = new int[1024];
+    private int freeCount;
+    private int used;
+    private int active;
+    private int peakActive;
+
+    public int open(byte type, int src, int dst, int bytes, int response, long now) {
+        int id;
+        if (freeCount > 0) {
+            id = free[--freeCount];
+        } else {
+            if (used == state.length) {
+                grow();
+            }
+            id = used++;
+        }
+        state[id] = type;
+        source[id] = src;
+        destination[id] = dst;
+        remaining[id] = bytes;
+        responseBytes[id] = response;
+        startTime[id] = now;
+        failures[id] = 0;
+        peakActive = Math.max(peakActive, ++active);
+        return id;
+    }
+
+    public void close(int id) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = id;
+        active--;
+    }
+
+    public byte getState(int id) { return state[id]; }
+    public int getSource(int id) { return source[id]; }
+    public int getDestination(int id) { return destination[id]; }
+    public int getRemaining(int id) { return remaining[id]; }
+    public long getStartTime(int id) { return startTime[id]; }
+    public int getActive() { return active; }
+    public int getPeakActive() { return peakActive; }
+
+    public void consume(int id, int bytes) {
+        remaining[id] -= bytes;
+        failures[id] = 0;
+    }
+
+    // Count another failed send of the current segment and return how many there were
+    public int fail(int id) {
+        return ++failures[id];
+    }
+
+    // Switch an HTTP session from its request to its response
+    public void startResponse(int id) {
+        state[id] = HTTP_RESPONSE;
+        remaining[id] = responseBytes[id];
+    }
+
+    public long memoryBytes() {
+        return state.length * 26L + free.length * 4L;
+    }
+
+    private void grow() {
+        int capacity = state.length * 2;
+        state = Arrays.copyOf(state, capacity);
+        source = Arrays.copyOf(source, capacity);
+        destination = Arrays.copyOf(destination, capacity);
+        remaining = Arrays.copyOf(remaining, capacity);
+        responseBytes = Arrays.copyOf(responseBytes, capacity);
+        startTime = Arrays.copyOf(startTime, capacity);
+        failures = Arrays.copyOf(failures, capacity);
+    }
+}
+
+// Generates HTTP-like request/response and FTP-like bulk sessions between the
+// attached end devices and sends their segments through the protocol stack. Each host
+// has an uplink and a downlink of the given rate with FIFO queueing, so sessions that
+// share a host contend for it; a segment that finds the receiver's downlink queue full,
+// or that the stack fails to send, is counted and sent again after a timeout.
+class TrafficGenerator {
+    public static final int MSS = 1460;
+    private static final int HTTP_REQUEST_BYTES = 300;
+    private static final int QUEUE_SEGMENTS = 64; // downlink buffer per host
+    private static final int MAX_REPORTED_BAD_RECORDS = 10;
+    private static final int MAX_ATTEMPTS = 8; // failed sends per segment before the session is aborted
+
+    private EventQueue queue;
+    private Random random;
+    private List<HostStack> hosts;
+    private SessionTable sessions;
+    private ArrivalProcess arrivals;
+    private ParetoSize httpSize;
+    private ParetoSize ftpSize;
+    private double ftpFraction;
+    private double linkBitsPerSecond;
+    private long segmentGap; // serialization time of one MSS at the link rate
+    private long roundTrip;
+    private long retransmitTimeout;
+    private long[] uplinkFree = new long[16]; // time each host's uplink finishes its queue
+    private long[] downlinkFree = new long[16];
+    private int sessionLimit;
+    private int sessionsStarted;
+    private BufferedReader trace;
+    private int traceLine;
+    private byte pendingType;
+    private int pendingSource;
+    private int pendingDestination;
+    private int pendingBytes;
+    private long badRecords;
+    private IOException traceError;
+
+    private int arrivalEvent;
+    private int segmentEvent;
+    private int deliveredEvent;
+    private int traceEvent;
+
+    private PacketBuffer buffer;
+    private byte[] payload;
+    private long segmentsSent;
+    private long segmentsFailed;
+    private long sessionsAborted;
+    private CompletionStats httpStats = new CompletionStats();
+    private CompletionStats ftpStats = new CompletionStats();
+
+    public TrafficGenerator(EventQueue queue, long seed, double linkBitsPerSecond, long roundTripNanos) {
+        this.queue = queue;
+        this.random = new Random(seed);
+        this.hosts = new ArrayList<>();
+        this.sessions = new SessionTable();
+        this.httpSize = new ParetoSize(1.2, 1024, 10_000_000);
+        this.ftpSize = new ParetoSize(1.2, 65_536, 100_000_000);
+        this.linkBitsPerSecond = linkBitsPerSecond;
+        this.segmentGap = transmissionTime(MSS);
+        this.roundTrip = roundTripNanos;
+        this.retransmitTimeout = 2 * roundTripNanos + QUEUE_SEGMENTS * segmentGap;
+        this.buffer = new PacketBuffer(PacketBuffer.DEFAULT_HEADROOM, MSS);
+        this.payload = new byte[MSS];
+        this.arrivalEvent = queue.register(this::onArrival);
+        this.segmentEvent = queue.register(this::onSegment);
+        this.deliveredEvent = queue.register(this::onDelivered);
+        this.traceEvent = queue.register(this::onTraceRecord);
+    }
+
+    public void attach(HostStack host) {
+        hosts.add(host);
+        if (hosts.size() > uplinkFree.length) {
+            uplinkFree = Arrays.copyOf(uplinkFree, hosts.size() * 2);
+            downlinkFree = Arrays.copyOf(downlinkFree, hosts.size() * 2);
+        }
+    }
+
+    public void setSizes(ParetoSize httpSize, ParetoSize ftpSize) {
+        this.httpSize = httpSize;
+        this.ftpSize = ftpSize;
+    }
+
+    public SessionTable getSessions() { return sessions; }
+    public CompletionStats getHttpStats() { return httpStats; }
+    public CompletionStats getFtpStats() { return ftpStats; }
+    public long getSegmentsSent() { return segmentsSent; }
+    public long getSegmentsFailed() { return segmentsFailed; }
+    public long getBadRecords() { return badRecords; }
+    public long getSessionsAborted() { return sessionsAborted; }
+    public IOException getTraceError() { return traceError; }
+
+    // Start sessions from an arrival process between random pairs of attached hosts
+    public void start(ArrivalProcess arrivals, double ftpFraction, int sessionLimit) {
+        if (hosts.size() < 2) {
+            throw new IllegalStateException("Sessions need at least 2 attached hosts, found " + hosts.size());
+        }
+        this.arrivals = arrivals;
+        this.ftpFraction = ftpFraction;
+        this.sessionLimit = sessionLimit;
+        if (sessionLimit <= 0) {
+            return;
+        }
+        queue.scheduleAfter(arrivals.nextGap(random), arrivalEvent, 0);
+    }
+
+    // Replay sessions from CSV lines "time_ms,source,destination,http|ftp,bytes"
+    public void replay(String path) throws IOException {
+        trace = new BufferedReader(new FileReader(path));
+        scheduleNextTraceRecord();
+    }
+
+    private void onArrival(long now, int arg) {
+        int src = random.nextInt(hosts.size());
+        int dst = random.nextInt(hosts.size() - 1);
+        if (dst >= src) {
+            dst++;
+        }
+        if (random.nextDouble() < ftpFraction) {
+            openSession(SessionTable.FTP, src, dst, ftpSize.next(random), now);
+        } else {
+            openSession(SessionTable.HTTP_REQUEST, src, dst, httpSize.next(random), now);
+        }
+        if (++sessionsStarted < sessionLimit) {
+            queue.scheduleAfter(arrivals.nextGap(random), arrivalEvent, 0);
+        }
+    }
+
+    private void openSession(byte type, int src, int dst, int bytes, long now) {
+        int id = type == SessionTable.FTP
+                ? sessions.open(type, src, dst, bytes, 0, now)
+                : sessions.open(type, src, dst, HTTP_REQUEST_BYTES, bytes, now);
+        queue.schedule(now, segmentEvent, id);
+    }
+
+    // Queue the session's next segment on the sender's uplink and the receiver's downlink.
+    // The next segment follows when the uplink is free; only the last one of a request or
+    // response is followed to delivery, which FIFO links keep after all earlier segments.
+    private void onSegment(long now, int id) {
+        int length = Math.min(MSS, sessions.getRemaining(id));
+        int src = sessions.getSource(id);
+        int dst = sessions.getDestination(id);
+        if (sessions.getState(id) == SessionTable.HTTP_RESPONSE) {
+            int server = dst;
+            dst = src;
+            src = server;
+        }
+        long transmission = transmissionTime(length);
+        long atSwitch = Math.max(now, uplinkFree[src]) + transmission;
+        long downlinkStart = Math.max(atSwitch, downlinkFree[dst]);
+        boolean congested = downlinkStart - atSwitch > QUEUE_SEGMENTS * segmentGap;
+        if (congested || !sendSegment(src, dst, length)) {
+            segmentsFailed++;
+            uplinkFree[src] = atSwitch;
+            // A full downlink drains, so only segments the stacks failed to deliver count
+            // toward giving up: those pairs may never deliver, e.g. no ARP entry or a host down
+            if (!congested && sessions.fail(id) >= MAX_ATTEMPTS) {
+                sessionsAborted++;
+                sessions.close(id);
+                return;
+            }
+            queue.schedule(now + retransmitTimeout, segmentEvent, id);
+            return;
+        }
+        uplinkFree[src] = atSwitch;
+        downlinkFree[dst] = downlinkStart + transmission;
+        sessions.consume(id, length);
+
+        if (sessions.getRemaining(id) > 0) {
+            queue.schedule(atSwitch, segmentEvent, id);
+        } else {
+            queue.schedule(downlinkFree[dst] + roundTrip / 2, deliveredEvent, id);
+        }
+    }
+
+    // Last segment of a request or response has reached the other end
+    private void onDelivered(long now, int id) {
+        if (sessions.getState(id) == SessionTable.HTTP_REQUEST) {
+            sessions.startResponse(id);
+            onSegment(now, id);
+            return;
+        }
+        long completion = now - sessions.getStartTime(id);
+        (sessions.getState(id) == SessionTable.FTP ? ftpStats : httpStats).record(completion);
+        sessions.close(id);
+    }
+
+    // Push the segment through the stacks; it counts only if the receiver got it
+    private boolean sendSegment(int src, int dst, int length) {
+        HostStack to = hosts.get(dst);
+        long received = to.getMessagesReceived();
+        segmentsSent++;
+        return hosts.get(src).send(buffer, payload, length, to.getAddress(), to.getDevice().getPort())
+                && to.getMessagesReceived() > received;
+    }
+
+    private long transmissionTime(int bytes) {
+        return (long) (bytes * 8 / linkBitsPerSecond * 1e9);
+    }
+
+    // A read error stops the replay and is kept for the caller to report
+    private void onTraceRecord(long now, int arg) {
+        openSession(pendingType, pendingSource, pendingDestination, pendingBytes, now);
+        try {
+            scheduleNextTraceRecord();
+        } catch (IOException e) {
+            traceError = e;
+        }
+    }
+
+    // Only one trace line is held in memory at a time. Rows that do not parse, name hosts
+    // that are not attached, or send to themselves are skipped and counted.
+    private void scheduleNextTraceRecord() throws IOException {
+        try {
+            String line;
+            while ((line = trace.readLine()) != null) {
+                traceLine++;
+                if (line.trim().isEmpty() || (traceLine == 1 && !Character.isDigit(line.trim().charAt(0)))) {
+                    continue; // header or blank line
+                }
+                String problem = parseTraceRecord(line.split(","));
+                if (problem != null) {
+                    if (++badRecords <= MAX_REPORTED_BAD_RECORDS) {
+                        System.out.println("Skipping trace line " + traceLine + ": " + problem);
+                    }
+                    continue;
+                }
+                long time = (long) (Double.parseDouble(line.substring(0, line.indexOf(',')).trim()) * 1e6);
+                queue.schedule(Math.max(time, queue.now()), traceEvent, 0);
+                return;
+            }
+        } catch (IOException e) {
+            trace.close();
+            throw e;
+        }
+        trace.close();
+    }
+
+    // Fill the pending record from the fields, or say what is wrong with them
+    private String parseTraceRecord(String[] fields) {
+        if (fields.length != 5) {
+            return "expected 5 fields, found " + fields.length;
+        }
+        try {
+            double time = Double.parseDouble(fields[0].trim());
+            pendingSource = Integer.parseInt(fields[1].trim());
+            pendingDestination = Integer.parseInt(fields[2].trim());
+            pendingBytes = Integer.parseInt(fields[4].trim());
+            if (!(time >= 0)) {
+                return "bad time " + fields[0].trim();
+            }
+        } catch (NumberFormatException e) {
+            return "not a number: " + e.getMessage();
+        }
+        String type = fields[3].trim();
+        if (type.equalsIgnoreCase("ftp")) {
+            pendingType = SessionTable.FTP;
+        } else if (type.equalsIgnoreCase("http")) {
+            pendingType = SessionTable.HTTP_REQUEST;
+        } else {
+            return "unknown session type " + type;
+        }
+        if (pendingSource < 0 || pendingSource >= hosts.size()
+                || pendingDestination < 0 || pendingDestination >= hosts.size()) {
+            return "host index outside 0.." + (hosts.size() - 1);
+        }
+        if (pendingSource == pendingDestination) {
+            return "source and destination are the same host";
+        }
+        if (pendingBytes <= 0) {
+            return "size must be positive";
+        }
+        return null;
+    }
+}
+
+// Main class to load a switched LAN with generated application traffic
+public class Workload {
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "poisson";
+        int sessionCount = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int hostCount = 16;
+
+        // hosts on one switch, same subnet
+        Switch switchDevice = new Switch(hostCount, "Switch");
+        List<HostStack> hosts = new ArrayList<>();
+        for (int i = 0; i < hostCount; i++) {
+            EndDevice device = new EndDevice("device " + (i + 1), 8000 + i);
+            device.connect(switchDevice);
+            switchDevice.learnAddress(device);
+            hosts.add(new HostStack(device, "10.0.0." + (i + 1), "255.255.0.0", "10.0.255.254"));
+        }
+        for (HostStack host : hosts) {
+            for (HostStack peer : hosts) {
+                host.addArpEntry(IPv4.format(peer.getAddress()), peer.getDevice().getMacAddress());
+            }
+        }
+
+        EventQueue queue = new EventQueue();
+        TrafficGenerator generator = new TrafficGenerator(queue, 42, 1e9, 100_000);
+        hosts.forEach(generator::attach);
+
+        if (mode.equals("trace")) {
+            generator.replay(args[2]);
+        } else if (mode.equals("onoff")) {
+            generator.start(new OnOffArrivals(200_000, 0.05, 0.05), 0.05, sessionCount);
+        } else {
+            generator.start(new PoissonArrivals(100_000), 0.05, sessionCount);
+        }
+
+        System.out.println("Running " + mode + " workload across " + hostCount + " end devices...");
+        long start = System.nanoTime();
+        queue.run(Long.MAX_VALUE);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (generator.getTraceError() != null) {
+            throw generator.getTraceError();
+        }
+
+        long delivered = 0;
+        for (HostStack host : hosts) {
+            delivered += host.getMessagesReceived();
+        }
+        SessionTable sessions = generator.getSessions();
+        System.out.printf("Simulated time: %.3f s, wall time: %.3f s%n", queue.now() / 1e9, seconds);
+        System.out.printf("Events: %d (%.0f events/s)%n", queue.getProcessed(), queue.getProcessed() / seconds);
+        System.out.println("Segments sent: " + generator.getSegmentsSent() + ", delivered: " + delivered
+                + ", failed and resent: " + generator.getSegmentsFailed()
+                + ", sessions aborted: " + generator.getSessionsAborted());
+        if (generator.getBadRecords() > 0) {
+            System.out.println("Trace lines skipped: " + generator.getBadRecords());
+        }
+        System.out.println("Peak concurrent sessions: " + sessions.getPeakActive()
+                + " (session table " + sessions.memoryBytes() / 1024 + " KB)");
+        generator.getHttpStats().display("HTTP");
+        generator.getFtpStats().display("FTP");
+    }
+}